@@ -0,0 +1,81 @@
+package org.example;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the /api/chat request body for a long conversation: from {@link ChatHistory}'s
+ * pre-encoded window, and, for comparison, by encoding every turn again as LLMService used to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatRequestBenchmark {
+    private static final String REQUEST_PREFIX = "{\"model\":\"llama3\",\"stream\":true,";
+    private static final String PROMPT = "And what comes next?";
+
+    @Param({"10", "100", "1000"})
+    private int turns;
+
+    @Param({"4096", "32768"})
+    private int contextTokens;
+
+    private ChatHistory history;
+    private final List<Map<String, String>> plainHistory = new ArrayList<>();
+
+    @Setup
+    public void setUp() {
+        history = new ChatHistory(contextTokens, false);
+        for (int i = 0; i < turns; i++) {
+            String role = i % 2 == 0 ? "user" : "assistant";
+            String content = "Turn " + i + " of the conversation, with a \"quoted\" word and enough text to look like a"
+                    + " real question or answer from a chat with the model about something.";
+            history.add(role, content);
+            plainHistory.add(Map.of("role", role, "content", content));
+        }
+    }
+
+    @Benchmark
+    public String chatHistory() {
+        return LLMService.buildChatBody(REQUEST_PREFIX, history, PROMPT);
+    }
+
+    /**
+     * Every turn re-encoded on every request, and never trimmed to the context budget.
+     */
+    @Benchmark
+    public String reencodeAllTurns() {
+        JSONObject body = new JSONObject();
+        body.put("model", "llama3");
+        body.put("stream", true);
+        JSONArray messages = new JSONArray();
+        for (Map<String, String> entry : plainHistory) {
+            JSONObject message = new JSONObject();
+            message.put("role", entry.get("role"));
+            message.put("content", entry.get("content"));
+            messages.put(message);
+        }
+        messages.put(new JSONObject().put("role", "user").put("content", PROMPT));
+        body.put("messages", messages);
+        return body.toString();
+    }
+}
@@ -0,0 +1,105 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One command of a logged-in client, from the received line (or frame) to the replies being
+ * queued, for a client sitting in a room with a full history.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandDispatchBenchmark {
+    @Param({"SEND hello everyone", "LIST", "HISTORY 20", "HELP", "UNKNOWN"})
+    private String command;
+
+    private ClientHandler client;
+    private WireProtocol.Frame frame;
+    private PrintStream console;
+
+    @Setup
+    public void setUp() throws IOException {
+        // Per-command log lines are DEBUG and off by default; anything else printed goes nowhere
+        // instead of flooding the run's output. LoggingBenchmark measures the logging itself.
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        RoomRegistry rooms = new RoomRegistry(DefaultRoom::new);
+        for (int i = 0; i < 20; i++) {
+            rooms.add(new DefaultRoom("room" + i));
+        }
+        client = new ClientHandler(new DiscardingConnection(), null, rooms, new SessionRegistry());
+        client.openAuthenticated("bench");
+        client.processLine("JOIN room0");
+        for (int i = 0; i < 100; i++) {
+            client.processLine("SEND filling the history, message " + i);
+        }
+
+        frame = toFrame(command);
+    }
+
+    private static WireProtocol.Frame toFrame(String command) {
+        int space = command.indexOf(' ');
+        String name = space < 0 ? command : command.substring(0, space);
+        String argument = space < 0 ? "" : command.substring(space + 1);
+        byte opcode;
+        switch (name) {
+            case "SEND":
+                opcode = WireProtocol.SEND;
+                break;
+            case "LIST":
+                opcode = WireProtocol.LIST;
+                break;
+            case "HISTORY":
+                opcode = WireProtocol.HISTORY;
+                break;
+            case "HELP":
+                opcode = WireProtocol.HELP;
+                break;
+            default:
+                opcode = 99;
+        }
+        byte[] encoded = WireProtocol.encode(opcode, (byte) 0, 0, argument);
+        return new WireProtocol.Frame(Arrays.copyOf(encoded, WireProtocol.HEADER_BYTES),
+                Arrays.copyOfRange(encoded, WireProtocol.HEADER_BYTES, encoded.length));
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.processLine("QUIT");
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public void line() {
+        client.processLine(command);
+    }
+
+    /**
+     * The same command as a binary frame.
+     */
+    @Benchmark
+    public void frame() {
+        client.processFrame(frame);
+    }
+}
@@ -0,0 +1,127 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * The credential store with a million accounts: a server restart loading them, lookups as
+ * done by LOGIN, and durable registrations from many threads at once.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CredentialStoreBenchmark {
+    private static final int USERS = 1_000_000;
+    // Any well-formed bcrypt hash; nothing is verified here
+    private static final String HASH = "$2a$10$N9qo8uLOickgx2ZMRZoMyeIjZAgcfl7p92ldGxad68LJZdL17lhWy";
+
+    /**
+     * A snapshot holding all users and an empty log, as left by a clean shutdown.
+     */
+    @State(Scope.Benchmark)
+    public static class UserFiles {
+        Path directory;
+
+        @Setup
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("credential-bench");
+            try (BufferedWriter out = Files.newBufferedWriter(snapshot(), StandardCharsets.UTF_8)) {
+                for (int i = 0; i < USERS; i++) {
+                    out.write("user" + i + ":" + HASH + "\n");
+                }
+            }
+            Files.createFile(log());
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+
+        Path log() {
+            return directory.resolve("users.txt");
+        }
+
+        Path snapshot() {
+            return directory.resolve("users.snapshot");
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class OpenStore {
+        CredentialStore store;
+        final String[] sample = new String[1 << 16];
+        final AtomicLong nextUser = new AtomicLong(USERS);
+
+        @Setup
+        public void setUp(UserFiles files) throws IOException {
+            store = new CredentialStore(files.log().toString(), files.snapshot().toString());
+            for (int i = 0; i < sample.length; i++) {
+                sample[i] = "user" + ThreadLocalRandom.current().nextInt(USERS);
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            store.close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public int load(UserFiles files) throws IOException {
+        CredentialStore store = new CredentialStore(files.log().toString(), files.snapshot().toString());
+        store.close();
+        return store.size();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    @Threads(4)
+    public String lookup(OpenStore open) {
+        return open.store.getHash(open.sample[ThreadLocalRandom.current().nextInt(open.sample.length)]);
+    }
+
+    /**
+     * Each registration waits until its batch is fsynced, so throughput comes from batching
+     * the registrations of concurrent callers.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    @Threads(64)
+    public boolean register(OpenStore open) throws IOException, InterruptedException {
+        return open.store.register("user" + open.nextUser.getAndIncrement(), HASH);
+    }
+}
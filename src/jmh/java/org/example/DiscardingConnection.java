@@ -0,0 +1,36 @@
+package org.example;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+
+/**
+ * Transport for benchmark clients: everything written to it is thrown away, so only the
+ * server's own work is measured.
+ */
+class DiscardingConnection implements ClientConnection {
+    private volatile boolean closed;
+
+    @Override
+    public OutputStream getOutputStream() {
+        return OutputStream.nullOutputStream();
+    }
+
+    @Override
+    public void writeShared(byte[] data) {
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
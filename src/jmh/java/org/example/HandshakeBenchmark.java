@@ -0,0 +1,87 @@
+package org.example;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many TLS handshakes per second a running server accepts, first with every
+ * connection doing a full handshake and then with connections resuming a cached session, the
+ * way reconnecting clients do.
+ *
+ * <p>Usage: {@code java org.example.HandshakeBenchmark <addr> <port> [connections] [concurrency]}
+ */
+public class HandshakeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java org.example.HandshakeBenchmark <addr> <port> [connections] [concurrency]");
+            return;
+        }
+        String addr = args[0];
+        int port = Integer.parseInt(args[1]);
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int concurrency = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+
+        SSLContext context = TlsContexts.createClientContext();
+        // Warm up both sides, and leave a session in the cache for the resumed run
+        run(context.getSocketFactory(), addr, port, Math.min(connections, 200), concurrency, false);
+
+        report("full", run(context.getSocketFactory(), addr, port, connections, concurrency, true));
+        report("resumed", run(context.getSocketFactory(), addr, port, connections, concurrency, false));
+    }
+
+    private static Result run(SSLSocketFactory factory, String addr, int port, int connections, int concurrency,
+                              boolean forceFull) throws InterruptedException {
+        AtomicLong remaining = new AtomicLong(connections);
+        AtomicLong resumed = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        AtomicLong handshakeNanos = new AtomicLong();
+
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            threads.add(Thread.startVirtualThread(() -> {
+                while (remaining.getAndDecrement() > 0) {
+                    long connectMillis = System.currentTimeMillis();
+                    long begin = System.nanoTime();
+                    try (SSLSocket socket = TlsContexts.connect(factory, addr, port)) {
+                        handshakeNanos.addAndGet(System.nanoTime() - begin);
+                        // A resumed session keeps the creation time of the one it came from
+                        if (socket.getSession().getCreationTime() < connectMillis) {
+                            resumed.incrementAndGet();
+                        }
+                        // Reading the prompt also takes in the TLS 1.3 session ticket sent after the handshake
+                        new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+                        if (forceFull) {
+                            socket.getSession().invalidate();
+                        }
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        return new Result(connections, resumed.get(), failed.get(), elapsed, handshakeNanos.get());
+    }
+
+    private static void report(String name, Result result) {
+        long succeeded = result.connections - result.failed;
+        System.out.printf("%-8s %d connections, %d resumed, %d failed: %.0f handshakes/s, %.2f ms per handshake%n",
+                name, result.connections, result.resumed, result.failed,
+                succeeded / (result.elapsedNanos / 1e9),
+                succeeded == 0 ? 0.0 : result.handshakeNanos / 1e6 / succeeded);
+    }
+
+    private record Result(int connections, long resumed, long failed, long elapsedNanos, long handshakeNanos) {
+    }
+}
@@ -0,0 +1,96 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command throughput of many clients at once with the per-command log line off, written
+ * through {@link Log} to a file, and printed to a file-backed {@code System.out} from the
+ * client's own thread as the server used to.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dchat.logging.file=target/logging-bench.log", "-Dchat.logging.maxFiles=1"})
+@Threads(8)
+public class LoggingBenchmark {
+    private static final String COMMAND = "SEND hello everyone";
+
+    @State(Scope.Benchmark)
+    public static class Logging {
+        @Param({"off", "async", "println"})
+        String logging;
+
+        final RoomRegistry rooms = new RoomRegistry(DefaultRoom::new);
+        final AtomicInteger nextClient = new AtomicInteger();
+        private PrintStream console;
+        private Path printed;
+
+        @Setup
+        public void setUp() throws IOException {
+            Log.setLevel(logging.equals("async") ? Log.Level.DEBUG : Log.Level.INFO);
+            console = System.out;
+            printed = Files.createTempFile("logging-bench", ".log");
+            System.setOut(new PrintStream(new BufferedOutputStream(new FileOutputStream(printed.toFile())), true));
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            Log.flush();
+            System.out.close();
+            System.setOut(console);
+            Files.delete(printed);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        ClientHandler handler;
+        String username;
+        boolean println;
+
+        @Setup
+        public void setUp(Logging logging) throws IOException {
+            username = "bench" + logging.nextClient.incrementAndGet();
+            println = logging.logging.equals("println");
+            handler = new ClientHandler(new DiscardingConnection(), null, logging.rooms, new SessionRegistry());
+            handler.openAuthenticated(username);
+            // A room each, so the clients only share the logging
+            handler.processLine("JOIN " + username);
+        }
+
+        @TearDown
+        public void tearDown() {
+            handler.processLine("QUIT");
+        }
+    }
+
+    @Benchmark
+    public void command(Client client) {
+        if (client.println) {
+            System.out.println("Received command from " + client.username + ": " + COMMAND);
+        }
+        client.handler.processLine(COMMAND);
+    }
+}
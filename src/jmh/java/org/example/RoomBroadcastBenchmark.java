@@ -0,0 +1,72 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out of one message to every member of a room. Members are real handlers with their
+ * outbound queues and writer threads, on a transport that discards the bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoomBroadcastBenchmark {
+    @Param({"10", "100", "1000"})
+    private int roomSize;
+
+    private DefaultRoom room;
+    private final List<ClientHandler> members = new ArrayList<>();
+    private final String message = "someone: a chat message of a fairly typical length, with a few words in it";
+
+    @Setup
+    public void setUp() throws IOException {
+        RoomRegistry rooms = new RoomRegistry(DefaultRoom::new);
+        SessionRegistry sessions = new SessionRegistry();
+        room = new DefaultRoom("bench");
+        rooms.add(room);
+        for (int i = 0; i < roomSize; i++) {
+            ClientHandler member = new ClientHandler(new DiscardingConnection(), null, rooms, sessions);
+            member.openAuthenticated("user" + i);
+            room.addClient(member);
+            members.add(member);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (ClientHandler member : members) {
+            member.processLine("QUIT");
+        }
+    }
+
+    @Benchmark
+    public void broadcast() {
+        room.broadcastMessage(message);
+    }
+
+    /**
+     * A message sent by a member: also kept in the room's history.
+     */
+    @Benchmark
+    public void publish() throws IOException {
+        room.publish(message);
+    }
+}
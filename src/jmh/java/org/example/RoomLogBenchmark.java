@@ -0,0 +1,78 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Room messages written to the on-disk logs, spread over some rooms. Each invocation queues a
+ * batch and waits until the writer has taken all of it, so the rate includes the writes and,
+ * from the previous batch on, their fsyncs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoomLogBenchmark {
+    private static final int BATCH = 1000;
+
+    @Param({"1", "100"})
+    private int rooms;
+
+    private Path directory;
+    private RoomLogStore store;
+    private RoomLog[] logs;
+    private final String message = "someone: a chat message of a fairly typical length, with a few words in it";
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("room-log-bench");
+        store = new RoomLogStore(directory.toString());
+        logs = new RoomLog[rooms];
+        for (int i = 0; i < rooms; i++) {
+            logs[i] = store.open("room" + i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void append() {
+        long target = store.getAppendedRecords() + BATCH;
+        for (int i = 0; i < BATCH; i++) {
+            logs[i % rooms].append(message);
+        }
+        while (store.getAppendedRecords() < target) {
+            LockSupport.parkNanos(10_000);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Room membership churn in a large room: members leaving and coming back while broadcasters
+ * take snapshots of the member list, and snapshots of a room nobody joins or leaves.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoomMembersBenchmark {
+    @Param({"1000", "10000"})
+    private int roomSize;
+
+    private RoomMembers members;
+    private ClientHandler[] clients;
+
+    @Setup
+    public void setUp() {
+        RoomRegistry rooms = new RoomRegistry(DefaultRoom::new);
+        SessionRegistry sessions = new SessionRegistry();
+        members = new RoomMembers();
+        clients = new ClientHandler[roomSize];
+        for (int i = 0; i < roomSize; i++) {
+            clients[i] = new ClientHandler(new DiscardingConnection(), null, rooms, sessions);
+            members.add(clients[i]);
+        }
+    }
+
+    /**
+     * One member leaves and joins again.
+     */
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(2)
+    public boolean churnLeaveAndJoin() {
+        ClientHandler client = clients[ThreadLocalRandom.current().nextInt(roomSize)];
+        members.remove(client);
+        return members.add(client);
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(2)
+    public int churnSnapshot() {
+        return members.snapshot().size();
+    }
+
+    @Benchmark
+    public List<ClientHandler> stableSnapshot() {
+        return members.snapshot();
+    }
+}
@@ -0,0 +1,62 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The room registry with many rooms: taking and releasing a room by name from several threads,
+ * as JOIN and cluster deliveries do, and reading a page of LIST deep into the rooms.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Threads(4)
+public class RoomRegistryBenchmark {
+    @Param({"1000", "1000000"})
+    private int roomCount;
+
+    private RoomRegistry rooms;
+    private String[] names;
+
+    @Setup
+    public void setUp() {
+        rooms = new RoomRegistry(DefaultRoom::new);
+        names = new String[roomCount];
+        for (int i = 0; i < roomCount; i++) {
+            names[i] = "room" + i;
+            rooms.add(new DefaultRoom(names[i]));
+        }
+    }
+
+    @Benchmark
+    public DefaultRoom acquireAndRelease() {
+        DefaultRoom room = rooms.acquire(names[ThreadLocalRandom.current().nextInt(roomCount)]);
+        rooms.release(room);
+        return room;
+    }
+
+    /**
+     * A page from the middle of the rooms whose names start with "room1".
+     */
+    @Benchmark
+    public List<String> listPage() {
+        return rooms.list("room1", roomCount / 20, 51);
+    }
+}
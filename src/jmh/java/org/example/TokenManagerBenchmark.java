@@ -0,0 +1,95 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reconnect token lookups with many live tokens, alone and while other threads keep issuing
+ * tokens, for both stored and signed tokens.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class TokenManagerBenchmark {
+    private static final int SAMPLE = 1 << 14;
+
+    @Param({"10000", "2000000"})
+    private int liveTokens;
+
+    @Param({"false", "true"})
+    private boolean signed;
+
+    private TokenManager tokens;
+    private final String[] sample = new String[SAMPLE];
+
+    @Setup
+    public void setUp() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        tokens = signed ? new TokenManager(new TokenSigner(key)) : new TokenManager();
+        // Signed tokens are not stored, so only the ones looked up need to exist
+        int issued = signed ? SAMPLE : liveTokens;
+        for (int i = 0; i < issued; i++) {
+            String token = tokens.generateToken("user" + i);
+            // Look up a uniform sample of all live tokens, not just the newest ones
+            int slot = i < SAMPLE ? i : ThreadLocalRandom.current().nextInt(i + 1);
+            if (slot < SAMPLE) {
+                sample[slot] = token;
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        tokens.shutdown();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String lookup() {
+        return tokens.getUsernameFromToken(sample[ThreadLocalRandom.current().nextInt(SAMPLE)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String generate() {
+        return tokens.generateToken("bench");
+    }
+
+    /**
+     * Reconnects (lookups) racing with logins (new tokens).
+     */
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public String mixedLookup() {
+        return lookup();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public String mixedGenerate() {
+        return generate();
+    }
+}
@@ -0,0 +1,217 @@
+package org.example;
+
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Conversation sent to the model with every chat request, kept within a context budget.
+ *
+ * <p>Turns are JSON-encoded once, when they are added, and kept as one serialized
+ * {@code messages} array body, so building a request only copies that text. When the budget
+ * is exceeded the oldest turns slide out of the window; if a summary of them is supplied via
+ * {@link #setSummary(String)} it is sent as a leading system message instead.
+ */
+public class ChatHistory {
+    private static final int CHARS_PER_TOKEN = 4;
+    private static final int DEFAULT_CONTEXT_TOKENS = Integer.getInteger("chat.llm.contextTokens", 4096);
+    private static final boolean DEFAULT_SUMMARIZE = Boolean.getBoolean("chat.llm.summarize");
+
+    private final int budgetChars;
+    private final boolean keepEvicted;
+    private final Deque<Turn> turns = new ArrayDeque<>();
+    private final List<Turn> evicted = new ArrayList<>();
+    private final StringBuilder encoded = new StringBuilder();
+    private int encodedStart; // turns that slid out are cut from the front lazily
+    private int windowChars;
+    private String summary;
+    private String encodedSummary;
+    private final Lock lock = new ReentrantLock();
+
+    /**
+     * @param budgetTokens approximate context budget, at four characters per token
+     * @param keepEvicted  whether turns that slide out are kept for {@link #takeEvicted()}
+     */
+    public ChatHistory(int budgetTokens, boolean keepEvicted) {
+        if (budgetTokens <= 0) {
+            throw new IllegalArgumentException("Context budget must be positive");
+        }
+        this.budgetChars = budgetTokens * CHARS_PER_TOKEN;
+        this.keepEvicted = keepEvicted;
+    }
+
+    /**
+     * History configured from chat.llm.contextTokens and chat.llm.summarize.
+     */
+    public static ChatHistory createDefault() {
+        return new ChatHistory(DEFAULT_CONTEXT_TOKENS, DEFAULT_SUMMARIZE);
+    }
+
+    public boolean isKeepingEvicted() {
+        return keepEvicted;
+    }
+
+    public void add(String role, String content) {
+        Turn turn = new Turn(role, content, encode(role, content));
+
+        lock.lock();
+        try {
+            if (encoded.length() > encodedStart) {
+                encoded.append(',');
+            }
+            encoded.append(turn.json);
+            turns.addLast(turn);
+            windowChars += turn.content.length();
+            slideWindow();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends {@code "messages":[...]} for the current window to {@code body}.
+     */
+    public void appendMessages(StringBuilder body) {
+        appendMessages(body, null);
+    }
+
+    /**
+     * Appends {@code "messages":[...]} for the current window followed by a user turn that is
+     * not part of the history yet, such as a prompt whose reply has not arrived. The oldest
+     * turns are left out as if the prompt had been added, but nothing is evicted.
+     */
+    public void appendMessages(StringBuilder body, String prompt) {
+        String pending = prompt == null ? null : encode("user", prompt);
+        lock.lock();
+        try {
+            int start = encodedStart;
+            if (prompt != null) {
+                int chars = windowChars + prompt.length() + (summary == null ? 0 : summary.length());
+                Iterator<Turn> oldest = turns.iterator();
+                while (chars > budgetChars && oldest.hasNext()) {
+                    Turn turn = oldest.next();
+                    chars -= turn.content.length();
+                    start = Math.min(start + turn.json.length() + 1, encoded.length());
+                }
+            }
+            body.append("\"messages\":[");
+            if (encodedSummary != null) {
+                body.append(encodedSummary);
+                if (encoded.length() > start || pending != null) {
+                    body.append(',');
+                }
+            }
+            body.append(encoded, start, encoded.length());
+            if (pending != null) {
+                if (encoded.length() > start) {
+                    body.append(',');
+                }
+                body.append(pending);
+            }
+            body.append(']');
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns and forgets the turns that slid out of the window since the last call, so they
+     * can be summarized.
+     */
+    public List<String> takeEvicted() {
+        lock.lock();
+        try {
+            List<String> lines = new ArrayList<>(evicted.size());
+            for (Turn turn : evicted) {
+                lines.add(turn.role + ": " + turn.content);
+            }
+            evicted.clear();
+            return lines;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String getSummary() {
+        lock.lock();
+        try {
+            return summary;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the summary of the turns outside the window. It is capped at a quarter of the
+     * budget so it can never crowd out the recent turns.
+     */
+    public void setSummary(String summary) {
+        lock.lock();
+        try {
+            if (summary == null || summary.isBlank()) {
+                this.summary = null;
+                this.encodedSummary = null;
+                return;
+            }
+            int maxChars = budgetChars / 4;
+            this.summary = summary.length() > maxChars ? summary.substring(0, maxChars) : summary;
+            this.encodedSummary = "{\"role\":\"system\",\"content\":"
+                    + JSONObject.quote("Summary of the earlier conversation: " + this.summary) + "}";
+            slideWindow();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return turns.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWindowChars() {
+        lock.lock();
+        try {
+            return windowChars;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getBudgetChars() {
+        return budgetChars;
+    }
+
+    private static String encode(String role, String content) {
+        return "{\"role\":" + JSONObject.quote(role) + ",\"content\":" + JSONObject.quote(content) + "}";
+    }
+
+    private void slideWindow() {
+        int summaryChars = summary == null ? 0 : summary.length();
+        // Always keep the newest turn, even if it alone is over budget
+        while (turns.size() > 1 && windowChars + summaryChars > budgetChars) {
+            Turn oldest = turns.removeFirst();
+            windowChars -= oldest.content.length();
+            encodedStart += oldest.json.length() + 1;
+            if (keepEvicted) {
+                evicted.add(oldest);
+            }
+        }
+        if (encodedStart > encoded.length() / 2) {
+            encoded.delete(0, encodedStart);
+            encodedStart = 0;
+        }
+    }
+
+    private record Turn(String role, String content, String json) {
+    }
+}
@@ -1,9 +1,13 @@
 package org.example;
 
 import javax.net.ssl.*;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.Scanner;
 import java.util.concurrent.locks.Lock;
@@ -12,8 +16,10 @@ import java.util.concurrent.locks.ReentrantLock;
 public class Client {
     private static String serverToken = null;
     private static String currentRoom = null;
-    private static final int MAX_RECONNECT_ATTEMPTS = 5;
-    private static final int INITIAL_RECONNECT_DELAY = 1000; // 1 second
+    static final int MAX_RECONNECT_ATTEMPTS = 5;
+    static final int INITIAL_RECONNECT_DELAY = 1000; // 1 second
+    private static final boolean BINARY = Boolean.getBoolean("chat.client.binary");
+    private static final int MAX_LINE_BYTES = 64 * 1024;
 
     private static final Lock tokenLock = new ReentrantLock();
     private static final Lock reconnectLock = new ReentrantLock();
@@ -21,11 +27,15 @@ public class Client {
     private static Thread currentReaderThread = null;
     private static volatile boolean isReconnecting = false;
     private static volatile boolean shouldExit = false;
+    private static volatile boolean quitRequested = false;
     private static volatile SSLSocket currentSocket = null;
     private static volatile PrintWriter currentWriter = null;
-    private static volatile BufferedReader currentReader = null;
+    private static volatile InputStream currentInput = null;
+    private static volatile OutputStream currentOutput = null;
+    private static volatile int currentRoomId = 0;
     private static final Lock socketLock = new ReentrantLock();
     private static final Scanner scanner = new Scanner(System.in);
+    private static SSLSocketFactory socketFactory;
 
     private static volatile boolean processingReconnect = false;
 
@@ -39,8 +49,8 @@ public class Client {
         int port = Integer.parseInt(args[1]);
 
         try {
-            System.setProperty("javax.net.ssl.trustStore", "truststore.jks");
-            System.setProperty("javax.net.ssl.trustStorePassword", "cpdg16");
+            // One context for every connection, so reconnects resume the TLS session
+            socketFactory = TlsContexts.createClientContext().getSocketFactory();
 
             runClientLoop(addr, port);
         } catch (Exception e) {
@@ -67,6 +77,8 @@ public class Client {
                     currentRoom = command.substring(5);
                 } else if (command.equals("LEAVE")) {
                     currentRoom = null;
+                } else if (command.equals("QUIT")) {
+                    quitRequested = true;
                 } else if (command.equals("SIM")) {
                     System.out.println("Simulating a connection loss...");
                     socketLock.lock();
@@ -86,8 +98,7 @@ public class Client {
                     socketLock.lock();
                     try {
                         if (currentWriter != null) {
-                            currentWriter.println(command);
-                            currentWriter.flush();
+                            sendCommand(command);
                         } else {
                             System.out.println("Not connected to server. Attempting to reconnect...");
                             connectToServer(addr, port);
@@ -115,12 +126,17 @@ public class Client {
         try {
             closeConnection();
 
-            SSLSocket socket = createSSLSocket(addr, port);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            SSLSocket socket = TlsContexts.connect(socketFactory, addr, port);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream rawOut = socket.getOutputStream();
+            PrintWriter out = new PrintWriter(rawOut, true);
+            if (BINARY) {
+                out.println(WireProtocol.NEGOTIATE);
+            }
 
             currentSocket = socket;
-            currentReader = in;
+            currentInput = in;
+            currentOutput = rawOut;
             currentWriter = out;
 
             startReaderThread(addr, port);
@@ -128,8 +144,7 @@ public class Client {
             if (serverToken != null) {
                 processingReconnect = true;
                 System.out.println("Reconnecting to server...");
-                out.println("RECONNECT " + serverToken);
-                out.flush();
+                sendCommand("RECONNECT " + serverToken);
             } else {
                 System.out.println("Connected to server!");
             }
@@ -148,69 +163,36 @@ public class Client {
                 currentSocket.close();
             }
             currentSocket = null;
-            currentReader = null;
+            currentInput = null;
+            currentOutput = null;
             currentWriter = null;
         } catch (IOException e) {
             System.out.println("Error closing connection: " + e.getMessage());
         }
     }
 
-    private static SSLSocket createSSLSocket(String addr, int port) throws IOException {
-        SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-        SSLSocket socket = (SSLSocket) sslSocketFactory.createSocket(addr, port);
-        socket.setEnabledProtocols(new String[] {"TLSv1.3", "TLSv1.2"});
-        socket.startHandshake();
-        return socket;
-    }
-
     private static void startReaderThread(String addr, int port) {
         if (currentReaderThread != null && currentReaderThread.isAlive()) {
             currentReaderThread.interrupt();
         }
 
         currentReaderThread = Thread.startVirtualThread(() -> {
-            BufferedReader localReader = currentReader;
+            InputStream localInput = currentInput;
 
             try {
-                String line;
-                while (!shouldExit && localReader != null && (line = localReader.readLine()) != null) {
-                    if (processingReconnect && (line.contains("LOGIN") || line.contains("REGISTER") || line.contains("RECONNECT"))) {
-                        continue;
-                    }
-
-                    if (line.startsWith("AUTH_TOKEN ")) {
-                        tokenLock.lock();
-                        try {
-                            serverToken = line.substring(11);
-                            System.out.println("Server authentication token received");
-                        } finally {
-                            tokenLock.unlock();
-                        }
-                    }
-                    else if (processingReconnect && line.startsWith("Reconnected to room:")) {
-                        System.out.println("Successfully reconnected to " + currentRoom);
-                        processingReconnect = false;
-                    }
-                    else if (processingReconnect && line.startsWith("Welcome ")) {
-                        System.out.println("Successfully reconnected to server");
-                        processingReconnect = false;
-
-                        if (currentRoom != null) {
-                            socketLock.lock();
-                            try {
-                                if (currentWriter != null) {
-                                    currentWriter.println("JOIN " + currentRoom);
-                                    currentWriter.flush();
-                                    System.out.println("Rejoining room: " + currentRoom);
-                                }
-                            } finally {
-                                socketLock.unlock();
-                            }
-                        }
-                    }
-                    else {
-                        System.out.println(line);
-                    }
+                if (localInput == null) {
+                    return;
+                }
+                if (BINARY) {
+                    readFrames(localInput);
+                } else {
+                    readLines(localInput);
+                }
+                // The server closing the connection, or a socket closed under a blocked read,
+                // may just show up as the end of the stream
+                if (!quitRequested && !isReconnecting && !shouldExit) {
+                    System.out.println("Connection lost");
+                    handleReconnection(addr, port);
                 }
             } catch (IOException e) {
                 if (!isReconnecting && !shouldExit) {
@@ -221,6 +203,126 @@ public class Client {
         });
     }
 
+    private static void readLines(InputStream input) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+        String line;
+        while (!shouldExit && (line = reader.readLine()) != null) {
+            if (line.startsWith("AUTH_TOKEN ")) {
+                handleServerMessage(WireProtocol.TOKEN, 0, line.substring(11));
+            } else if (line.contains("LOGIN") || line.contains("REGISTER") || line.contains("RECONNECT")) {
+                handleServerMessage(WireProtocol.AUTH_PROMPT, 0, line);
+            } else if (line.startsWith("Reconnected to room:")) {
+                handleServerMessage(WireProtocol.RECONNECTED, 0, line);
+            } else if (line.startsWith("Welcome ")) {
+                handleServerMessage(WireProtocol.WELCOME, 0, line);
+            } else {
+                handleServerMessage(WireProtocol.TEXT, 0, line);
+            }
+        }
+    }
+
+    /**
+     * Binary mode: skips the lines sent before the server accepted frames, then dispatches on
+     * each frame's opcode instead of matching text.
+     */
+    private static void readFrames(InputStream input) throws IOException {
+        String line;
+        while ((line = WireProtocol.readLine(input, MAX_LINE_BYTES)) != null && !line.equals(WireProtocol.ACCEPTED)) {
+            if (!processingReconnect) {
+                System.out.println(line);
+            }
+        }
+
+        DataInputStream frames = new DataInputStream(input);
+        WireProtocol.Frame frame;
+        while (!shouldExit && (frame = WireProtocol.read(frames, WireProtocol.MAX_RESPONSE_PAYLOAD)) != null) {
+            handleServerMessage(frame.getOpcode(), frame.getRoomId(), frame.payload());
+        }
+    }
+
+    private static void handleServerMessage(byte opcode, int roomId, String text) {
+        switch (opcode) {
+            case WireProtocol.TOKEN:
+                tokenLock.lock();
+                try {
+                    serverToken = text;
+                    System.out.println("Server authentication token received");
+                } finally {
+                    tokenLock.unlock();
+                }
+                break;
+            case WireProtocol.AUTH_PROMPT:
+                if (!processingReconnect) {
+                    System.out.println(text);
+                }
+                break;
+            case WireProtocol.RECONNECTED:
+                currentRoomId = roomId;
+                if (processingReconnect) {
+                    System.out.println("Successfully reconnected to " + currentRoom);
+                    processingReconnect = false;
+                } else {
+                    System.out.println(text);
+                }
+                break;
+            case WireProtocol.WELCOME:
+                if (!processingReconnect) {
+                    System.out.println(text);
+                    break;
+                }
+                System.out.println("Successfully reconnected to server");
+                processingReconnect = false;
+
+                if (currentRoom != null) {
+                    socketLock.lock();
+                    try {
+                        if (currentWriter != null) {
+                            sendCommand("JOIN " + currentRoom);
+                            System.out.println("Rejoining room: " + currentRoom);
+                        }
+                    } finally {
+                        socketLock.unlock();
+                    }
+                }
+                break;
+            case WireProtocol.JOINED:
+                currentRoomId = roomId;
+                System.out.println(text);
+                break;
+            case WireProtocol.LEFT:
+                if (roomId == currentRoomId) {
+                    currentRoomId = 0;
+                }
+                System.out.println(text);
+                break;
+            default:
+                System.out.println(text);
+        }
+    }
+
+    /**
+     * Sends a command as typed, as a line or as a frame. Callers hold {@code socketLock}.
+     */
+    private static void sendCommand(String command) {
+        if (!BINARY) {
+            currentWriter.println(command);
+            currentWriter.flush();
+            return;
+        }
+
+        byte[] frame = WireProtocol.encodeCommand(command, currentRoomId);
+        if (frame == null) {
+            System.out.println("Unknown command: " + command + ". Type HELP for a list of commands.");
+            return;
+        }
+        try {
+            currentOutput.write(frame);
+            currentOutput.flush();
+        } catch (IOException e) {
+            System.out.println("Error sending command: " + e.getMessage());
+        }
+    }
+
     private static void handleReconnection(String addr, int port) {
         reconnectLock.lock();
         try {
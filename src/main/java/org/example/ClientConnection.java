@@ -0,0 +1,33 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+
+/**
+ * Transport underneath a {@link ClientHandler}, for its output. The blocking server hands out
+ * one {@link SocketConnection} per client thread, whose input the thread reads itself; the NIO
+ * server a {@link NioConnection} that is driven by an event loop and pushes complete lines
+ * into the handler.
+ */
+public interface ClientConnection extends Closeable {
+
+    public OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Writes and flushes {@code data}, which nobody modifies afterwards, so a transport that
+     * queues output may keep the array instead of copying it.
+     */
+    public default void writeShared(byte[] data) throws IOException {
+        OutputStream out = getOutputStream();
+        out.write(data);
+        out.flush();
+    }
+
+    public InetAddress getInetAddress();
+
+    public boolean isClosed();
+
+    public void close() throws IOException;
+}
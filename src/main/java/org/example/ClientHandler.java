@@ -1,94 +1,306 @@
 package org.example;
 
 import java.io.*;
-import java.net.Socket;
 import java.net.URISyntaxException;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
-public class ClientHandler implements Runnable {
-    private final Socket socket;
-    private final Map<String, String> credentials; // username -> hashed password
-    private final Map<String, DefaultRoom> roomMap;
-    private final List<ClientHandler> activeClients;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ClientHandler {
+    private static final String AUTH_PROMPT = "LOGIN <username> <password> or REGISTER <username> <password>";
+    private static final OutboundMessage AUTH_PROMPT_MESSAGE = OutboundMessage.of(WireProtocol.AUTH_PROMPT, 0, AUTH_PROMPT);
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+    private static final int MAX_AUTH_ATTEMPTS = 3;
+    private static final int OUTBOUND_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+    private static final OutboundQueue.OverflowPolicy OUTBOUND_POLICY =
+            OutboundQueue.OverflowPolicy.valueOf(System.getProperty("chat.outbound.policy", "DROP_OLDEST"));
+    private static final long WRITER_DRAIN_TIMEOUT_MILLIS = 2000;
+    // A batch is written once it reaches this size (one full TLS record), or when no further
+    // message arrives within the linger time; 0 bytes writes every message on its own
+    private static final int FLUSH_BYTES = Integer.getInteger("chat.outbound.flushBytes", 16 * 1024);
+    private static final long LINGER_NANOS = Long.getLong("chat.outbound.lingerMicros", 50) * 1000;
+    private static final int DEFAULT_HISTORY_COUNT = 20;
+    private static final int MAX_HISTORY_COUNT = 500;
+    private static final int LIST_PAGE_SIZE = Integer.getInteger("chat.rooms.pageSize", 50);
+
+    private final ClientConnection connection;
+    private final CredentialStore credentials;
+    private final RoomRegistry rooms;
+    private final SessionRegistry sessions;
     private String username;
     private IRoom currentRoom;
 
-    private BufferedReader in;
-    private PrintWriter out;
-    private final Lock credentialsLock = new ReentrantLock();
-    private final Lock activeClientsLock = new ReentrantLock();
-    private final Lock roomMapLock = new ReentrantLock();
+    private InputStream in;
+    private OutputStream out;
 
     private String authToken;
-
-    public ClientHandler(Socket socket, Map<String, String> credentials,
-                         Map<String, DefaultRoom> roomMap, List<ClientHandler> activeClients) {
-        this.socket = socket;
+    private boolean authenticated;
+    private int authAttempts;
+    private boolean authThrottled; // last attempt was turned away unchecked, so it does not count
+    private boolean negotiable = true; // only the first line may ask for binary frames
+    private boolean binary;
+    private volatile boolean cleanedUp;
+    private final AtomicBoolean connectionCounted = new AtomicBoolean(); // opened, not yet counted closed
+    private final AtomicBoolean disconnecting = new AtomicBoolean(); // dropped as a slow client
+
+    private final OutboundQueue outbound = new OutboundQueue(OUTBOUND_CAPACITY, OUTBOUND_POLICY);
+    private Thread writerThread;
+    private final Batch batch = new Batch(FLUSH_BYTES + 256);
+    private byte[] single; // the batch while it holds one message, still the message's shared encoding
+
+    private static final LongAdder messagesWritten = new LongAdder();
+    private static final LongAdder transportWrites = new LongAdder();
+    private static final LongAdder bytesWritten = new LongAdder();
+
+    public ClientHandler(ClientConnection connection, CredentialStore credentials,
+                         RoomRegistry rooms, SessionRegistry sessions) {
+        this.connection = connection;
         this.credentials = credentials;
-        this.roomMap = roomMap;
-        this.activeClients = activeClients;
-
+        this.rooms = rooms;
+        this.sessions = sessions;
     }
 
 
-    @Override
-    public void run() {
+    /**
+     * Blocking mode: owns the calling thread and reads lines from {@code socketInput} until the
+     * client goes away.
+     */
+    public void run(InputStream socketInput) {
         try {
+            InputStream input = new BufferedInputStream(socketInput);
+            in = input;
             setupStreams();
 
-            int attempts = 0;
-            final int MAX_ATTEMPTS = 3;
-            while (!handleAuthentication()) {
-                attempts++;
-                out.println("Authentication failed. Attempt " + attempts + " of " + MAX_ATTEMPTS);
-                if (attempts >= MAX_ATTEMPTS) {
-                    out.println("Maximum authentication attempts reached. Disconnecting...");
-                    socket.close();
-                    return;
-                }
+            // Read the first line without a reader, which would buffer past it into the frames
+            String first = WireProtocol.readLine(input, MAX_LINE_BYTES);
+            if (first == null) {
+                return;
             }
+            handleLine(first);
 
-            out.println("Welcome " + username + "!");
-
-            String input;
-            while ((input = in.readLine()) != null) {
-                handleCommand(input);
+            if (binary) {
+                DataInputStream frames = new DataInputStream(input);
+                WireProtocol.Frame frame;
+                while (!connection.isClosed() && (frame = WireProtocol.read(frames, WireProtocol.MAX_REQUEST_PAYLOAD)) != null) {
+                    handleFrame(frame);
+                }
+            } else {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+                String line;
+                while (!connection.isClosed() && (line = reader.readLine()) != null) {
+                    handleLine(line);
+                }
             }
 
         } catch (IOException e) {
-            System.out.println("Client disconnected: " + username + " - Error: " + e.getMessage());
-            out.println("Client disconnected: " + username + " - Error: " + e.getMessage());
-            e.printStackTrace();
+            handleIOException(e);
         } catch (URISyntaxException | InterruptedException e) {
-            System.out.println("Error processing LLM request: " + e.getMessage());
-            e.printStackTrace();
-            try {
-                if (out != null) {
-                    out.println("Error processing your request: " + e.getMessage());
-                }
-            } catch (Exception ignored) {}
+            handleRequestException(e);
         } finally {
+            if (!cleanedUp) {
+                cleanup();
+            }
+        }
+    }
+
+    /**
+     * NIO mode: called once the connection is registered with its event loop.
+     */
+    void open() {
+        try {
+            setupStreams();
+        } catch (IOException e) {
+            handleIOException(e);
             cleanup();
         }
     }
 
+    /**
+     * Starts the session of {@code username} without the login exchange, for in-process
+     * drivers such as the benchmarks; commands are then fed with {@link #processLine}.
+     */
+    void openAuthenticated(String username) throws IOException {
+        this.username = username;
+        this.authenticated = true;
+        this.negotiable = false;
+        setupStreams();
+    }
+
+    /**
+     * NIO mode: called with each complete line, never concurrently for the same client.
+     */
+    void processLine(String input) {
+        if (cleanedUp) {
+            return;
+        }
+        try {
+            handleLine(input);
+        } catch (IOException e) {
+            handleIOException(e);
+            cleanup();
+        } catch (URISyntaxException | InterruptedException e) {
+            handleRequestException(e);
+            cleanup();
+        }
+    }
+
+    /**
+     * NIO mode: called with each complete frame once the client switched to binary frames.
+     */
+    void processFrame(WireProtocol.Frame frame) {
+        if (cleanedUp) {
+            return;
+        }
+        try {
+            handleFrame(frame);
+        } catch (IOException e) {
+            handleIOException(e);
+            cleanup();
+        } catch (URISyntaxException | InterruptedException e) {
+            handleRequestException(e);
+            cleanup();
+        }
+    }
+
+    /**
+     * NIO mode: called after the event loop has closed the channel.
+     */
+    void connectionClosed() {
+        if (!cleanedUp) {
+            cleanup();
+        }
+    }
+
+    private void handleIOException(IOException e) {
+        Log.info("Client disconnected: {} - Error: {}", username, e.getMessage());
+        Log.debug("Disconnect of {}", username, e);
+        sendMessage("Client disconnected: " + username + " - Error: " + e.getMessage());
+    }
+
+    private void handleRequestException(Exception e) {
+        Log.error("Error processing LLM request of {}: {}", username, e.getMessage(), e);
+        sendMessage("Error processing your request: " + e.getMessage());
+    }
+
     private void setupStreams() throws IOException {
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        out = new PrintWriter(socket.getOutputStream(), true);
-        socket.setSoTimeout(120000);
+        ServerMetrics.recordConnectionOpened();
+        connectionCounted.set(true);
+        out = connection.getOutputStream();
+        writerThread = Thread.startVirtualThread(this::drainOutbound);
+        sendMessage(AUTH_PROMPT_MESSAGE);
+    }
+
+    /**
+     * Writer thread: the only place that touches the socket's output stream, so a client
+     * that stops reading only ever stalls itself. Whatever is queued is written as one batch,
+     * so a busy client gets few large TLS records instead of one per message. A message that
+     * goes out alone is written from its shared encoding, without copying it into the batch.
+     */
+    private void drainOutbound() {
+        boolean framed = false;
+        try {
+            OutboundMessage message;
+            while ((message = outbound.take()) != null) {
+                long lingerUntil = System.nanoTime() + LINGER_NANOS;
+                while (message != null) {
+                    append(framed ? message.encodeFrame() : message.encodeLine());
+                    messagesWritten.increment();
+                    // Everything after the acceptance line is framed
+                    framed = framed || message == OutboundMessage.BINARY_ACCEPTED;
+                    if (batchSize() >= FLUSH_BYTES) {
+                        break;
+                    }
+                    message = outbound.poll(lingerUntil - System.nanoTime());
+                }
+                flushBatch();
+            }
+        } catch (IOException e) {
+            outbound.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    private boolean handleAuthentication() throws IOException {
-        out.println("LOGIN <username> <password> or REGISTER <username> <password>");
-        String input = in.readLine();
+    private void append(byte[] encoded) throws IOException {
+        if (single == null && batch.size() == 0) {
+            single = encoded;
+            return;
+        }
+        if (single != null) {
+            batch.write(single);
+            single = null;
+        }
+        batch.write(encoded);
+    }
 
-        if (input == null) {
-            return false;
+    private int batchSize() {
+        return single != null ? single.length : batch.size();
+    }
+
+    private void flushBatch() throws IOException {
+        transportWrites.increment();
+        bytesWritten.add(batchSize());
+        if (single != null) {
+            connection.writeShared(single);
+            single = null;
+            return;
+        }
+        out.write(batch.array(), 0, batch.size());
+        batch.reset();
+        out.flush();
+    }
+
+    private void handleLine(String input) throws IOException, URISyntaxException, InterruptedException {
+        if (authenticated) {
+            handleCommand(input);
+            return;
+        }
+        if (negotiable) {
+            negotiable = false;
+            if (input.equals(WireProtocol.NEGOTIATE)) {
+                binary = true;
+                sendMessage(OutboundMessage.BINARY_ACCEPTED);
+                return;
+            }
         }
 
+        authThrottled = false;
+        finishAuthentication(handleAuthentication(input));
+    }
+
+    private void handleFrame(WireProtocol.Frame frame) throws IOException, URISyntaxException, InterruptedException {
+        if (authenticated) {
+            dispatchFrame(frame);
+            return;
+        }
+
+        authThrottled = false;
+        finishAuthentication(handleAuthentication(frame));
+    }
+
+    private void finishAuthentication(boolean success) {
+        if (success) {
+            authenticated = true;
+            sendMessage(OutboundMessage.of(WireProtocol.WELCOME, 0, "Welcome " + username + "!"));
+            return;
+        }
+        if (authThrottled) {
+            sendMessage(AUTH_PROMPT_MESSAGE);
+            return;
+        }
+
+        authAttempts++;
+        sendMessage("Authentication failed. Attempt " + authAttempts + " of " + MAX_AUTH_ATTEMPTS);
+        if (authAttempts >= MAX_AUTH_ATTEMPTS) {
+            sendMessage("Maximum authentication attempts reached. Disconnecting...");
+            cleanup();
+            return;
+        }
+        sendMessage(AUTH_PROMPT_MESSAGE);
+    }
+
+    private boolean handleAuthentication(String input) throws InterruptedException {
         String parts[] = input.split(" ", 3);
 
         if (parts[0].equals("RECONNECT") && parts.length == 2) {
@@ -96,100 +308,148 @@ public class ClientHandler implements Runnable {
         } else if ((parts[0].equals("LOGIN") || parts[0].equals("REGISTER")) && parts.length == 3) {
             return handleCredentialAuth(parts[0], parts[1], parts[2]);
         } else {
-            out.println("Invalid authentication format");
+            sendMessage("Invalid authentication format");
             return false;
         }
     }
 
+    private boolean handleAuthentication(WireProtocol.Frame frame) throws InterruptedException {
+        byte opcode = frame.getOpcode();
+        if (opcode == WireProtocol.RECONNECT && frame.getPayloadLength() > 0) {
+            return handleReconnection(frame.payload());
+        }
+        int space = frame.indexOf((byte) ' ');
+        if ((opcode == WireProtocol.LOGIN || opcode == WireProtocol.REGISTER) && space > 0) {
+            return handleCredentialAuth(opcode == WireProtocol.LOGIN ? "LOGIN" : "REGISTER",
+                    frame.slice(0, space), frame.slice(space + 1, frame.getPayloadLength()));
+        }
+        sendMessage("Invalid authentication format");
+        return false;
+    }
+
     private boolean handleReconnection(String token) {
         // Check if the token is valid and retrieve the username
         String username = Server.getTokenManager().getUsernameFromToken(token);
         if (username == null) {
-            out.println("Invalid or expired token. Please login with credentials.");
+            ServerMetrics.recordReconnect(false);
+            sendMessage("Invalid or expired token. Please login with credentials.");
             return false;
         }
+        ServerMetrics.recordReconnect(true);
 
         this.username = username;
         this.authToken = token;
 
-        ClientHandler existingClient = Server.getUserSession(username);
-        if (existingClient != null) {
+        ClientHandler existingClient = sessions.handover(username, this);
+        if (existingClient != null && existingClient != this) {
+            // The old connection is replaced, not logged out: it must not run its own cleanup
+            existingClient.cleanedUp = true;
             this.currentRoom = existingClient.currentRoom;
 
             if (currentRoom != null) {
-                currentRoom.removeClient(existingClient);
+                // Join before the old connection leaves, so the room never looks empty to the evictor
                 currentRoom.addClient(this);
-                out.println("Reconnected to room: " + currentRoom.getRoomName());
-                currentRoom.broadcastMessage("[" + username + " re-enters the room]");
+                currentRoom.removeClient(existingClient);
+                sendMessage(OutboundMessage.of(WireProtocol.RECONNECTED, currentRoom.getRoomId(),
+                        "Reconnected to room: " + currentRoom.getRoomName()));
+                currentRoom.announce("[" + username + " re-enters the room]");
             }
 
             existingClient.closeResources();
-            Server.removeUserSession(username);
         }
-
-        Server.registerUserSession(username, this);
         return true;
     }
 
-    private boolean handleCredentialAuth(String authType, String username, String password) {
-        if ((!this.credentials.containsKey(username) || !PasswordUtil.checkCredentials(password, this.credentials.get(username))) && authType.equals("LOGIN")) {
-            out.println("Invalid username or password");
+    private boolean handleCredentialAuth(String authType, String username, String password) throws InterruptedException {
+        long start = System.nanoTime();
+        boolean success = checkCredentials(authType, username, password);
+        if (authThrottled) {
+            ServerMetrics.recordLoginThrottled();
+        } else {
+            ServerMetrics.recordAuthentication(success, System.nanoTime() - start);
+        }
+        return success;
+    }
+
+    /**
+     * Whether a new account may use the name: the credentials log is one "name:hash" line per
+     * user, and a binary REGISTER frame can carry any character.
+     */
+    static boolean isValidUsername(String username) {
+        return !username.isEmpty() && username.codePoints().noneMatch(c -> c == ':'
+                || Character.isWhitespace(c) || Character.isSpaceChar(c) || Character.isISOControl(c));
+    }
+
+    private boolean checkCredentials(String authType, String username, String password) throws InterruptedException {
+        if (!Server.getLoginRateLimiter().tryAcquire(connection.getInetAddress())) {
+            authThrottled = true;
+            sendMessage("Too many login attempts. Please wait a moment and try again.");
+            return false;
+        }
+
+        try {
+            if (authType.equals("LOGIN") && (!this.credentials.contains(username)
+                    || !Server.getPasswordHasher().checkCredentials(password, this.credentials.getHash(username)))) {
+                sendMessage("Invalid username or password");
+                return false;
+            }
+        } catch (RejectedExecutionException e) {
+            authThrottled = true;
+            sendMessage("Server busy. Please try again in a moment.");
             return false;
         }
 
         if (authType.equals("REGISTER")) {
-            credentialsLock.lock();
+            if (!isValidUsername(username)) {
+                sendMessage("Usernames may not be empty or contain ':', spaces or control characters.");
+                return false;
+            }
+            if (this.credentials.contains(username)) {
+                sendMessage("Username already exists. Please choose a different username.");
+                return false;
+            }
+            String encryptedPassword;
             try {
-                if (this.credentials.containsKey(username)) {
-                    out.println("Username already exists. Please choose a different username.");
-                    return false;
-                }
-
-                String encryptedPassword = PasswordUtil.encryptPassword(password);
-                this.credentials.put(username, encryptedPassword);
+                encryptedPassword = Server.getPasswordHasher().encryptPassword(password);
+            } catch (RejectedExecutionException e) {
+                authThrottled = true;
+                sendMessage("Server busy. Please try again in a moment.");
+                return false;
+            }
 
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter("./doc/users.txt", true))) {
-                    writer.newLine();
-                    writer.write(username + ":" + encryptedPassword);
-                } catch (IOException e) {
-                    out.println("Error saving credentials. Please try again.");
+            try {
+                if (!this.credentials.register(username, encryptedPassword)) {
+                    sendMessage("Username already exists. Please choose a different username.");
                     return false;
                 }
-
-                out.println("Registration successful.");
-            } finally {
-                credentialsLock.unlock(); // ALWAYS unlock in finally
+            } catch (IOException e) {
+                sendMessage("Error saving credentials. Please try again.");
+                return false;
             }
+            ServerMetrics.recordRegistration();
+            sendMessage("Registration successful.");
         }
 
-        this.username = username;
-        activeClientsLock.lock();
-        try {
-            for (ClientHandler client : activeClients) {
-                if (client.username.equals(this.username)) {
-                    out.println("Error: Username already active.");
-                    return false;
-                }
-            }
-            activeClients.add(this);
-        } finally {
-            activeClientsLock.unlock();
+        if (!sessions.claim(username, this)) {
+            sendMessage("Error: Username already active.");
+            return false;
         }
-        Server.registerUserSession(username, this);
+        this.username = username;
         this.authToken = Server.getTokenManager().generateToken(username);
-        out.println("Authentication successful.");
-        out.println("AUTH_TOKEN " + authToken);
+        sendMessage("Authentication successful.");
+        sendMessage(OutboundMessage.token(authToken));
         return true;
     }
 
     private void handleCommand(String input) throws IOException, URISyntaxException, InterruptedException {
-        System.out.println("Received command from " + username + ": " + input);
+        Log.debug("Received command from {}: {}", username, input);
+        ServerMetrics.recordCommand(WireProtocol.opcodeOf(input));
         if (input.startsWith("JOIN ")) {
             String roomName = input.substring(5);
             joinRoom(roomName);
         }
-        else if (input.equals("LIST")) {
-            listRooms();
+        else if (input.equals("LIST") || input.startsWith("LIST ")) {
+            listRooms(input.length() > 5 ? input.substring(5).trim() : "");
         }
         else if (input.startsWith("SEND ")) {
             String message = input.substring(5);
@@ -198,12 +458,17 @@ public class ClientHandler implements Runnable {
         else if (input.equals("LEAVE")) {
             leaveRoom();
         }
+        else if (input.equals("HISTORY") || input.startsWith("HISTORY ")) {
+            showHistory(input.length() > 8 ? input.substring(8).trim() : "");
+        }
         else if (input.equals("HELP")) {
             showHelp();
         }
+        else if (input.equals("STATS")) {
+            showStats();
+        }
         else if (input.equals("QUIT")) {
-            out.println("Goodbye " + username + "!");
-            cleanup();
+            quit();
         }
         else if (input.startsWith("LLM ")) {
             String command = input.substring(4);
@@ -216,152 +481,369 @@ public class ClientHandler implements Runnable {
             }
         }
         else {
-            out.println("Unknown command: " + input +
+            sendMessage("Unknown command: " + input +
                     ". Type HELP for a list of commands.");
         }
     }
 
+    /**
+     * Binary counterpart of {@link #handleCommand}: the opcode picks the command and its
+     * argument is the payload, so nothing needs to be parsed.
+     */
+    private void dispatchFrame(WireProtocol.Frame frame) throws IOException, URISyntaxException, InterruptedException {
+        ServerMetrics.recordCommand(frame.getOpcode());
+        switch (frame.getOpcode()) {
+            case WireProtocol.JOIN:
+                joinRoom(frame.payload());
+                break;
+            case WireProtocol.LIST:
+                listRooms(frame.payload().trim());
+                break;
+            case WireProtocol.SEND:
+                if (frame.getRoomId() != 0 && (currentRoom == null || currentRoom.getRoomId() != frame.getRoomId())) {
+                    sendMessage("You are no longer in that room.");
+                } else {
+                    sendMessageToRoom(frame.payload());
+                }
+                break;
+            case WireProtocol.LEAVE:
+                leaveRoom();
+                break;
+            case WireProtocol.HISTORY:
+                showHistory(frame.payload().trim());
+                break;
+            case WireProtocol.HELP:
+                showHelp();
+                break;
+            case WireProtocol.QUIT:
+                quit();
+                break;
+            case WireProtocol.LLM_LIST:
+                listLLMRooms();
+                break;
+            case WireProtocol.LLM_JOIN:
+                joinLLMRoom(frame.payload());
+                break;
+            case WireProtocol.STATS:
+                showStats();
+                break;
+            default:
+                sendMessage("Unknown opcode: " + frame.getOpcode() + ". Type HELP for a list of commands.");
+        }
+    }
+
 
     private void joinRoom(String roomName) {
-        DefaultRoom room;
-        roomMapLock.lock();
-        try {
-            room = roomMap.computeIfAbsent(roomName, DefaultRoom::new);
-        } finally {
-            roomMapLock.unlock();
-        }
         if (currentRoom != null) {
             currentRoom.removeClient(this);
-            currentRoom.broadcastMessage("[" + username + " leaves the room]");
-            out.println("Left room: " + currentRoom.getRoomName());
+            currentRoom.announce("[" + username + " leaves the room]");
+            sendMessage(OutboundMessage.of(WireProtocol.LEFT, currentRoom.getRoomId(), "Left room: " + currentRoom.getRoomName()));
         }
 
+        DefaultRoom room = rooms.join(roomName, this);
         currentRoom = room;
-        currentRoom.addClient(this);
-        room.broadcastMessage("[" + username + " enters the room]");
-        out.println("Joined room: " + roomName);
+        room.announce("[" + username + " enters the room]");
+        sendMessage(OutboundMessage.of(WireProtocol.JOINED, room.getRoomId(), "Joined room: " + roomName));
     }
 
     private void joinLLMRoom(String llmName) throws IOException, URISyntaxException, InterruptedException {
-        LLMRoom room = new LLMRoom(llmName);
+        if (currentRoom instanceof LLMRoom && currentRoom.getRoomName().equals(llmName)) {
+            sendMessage("Already in chat with " + llmName);
+            return;
+        }
+        LLMRoom room = Server.getLLMRooms().join(llmName, this);
 
         if (currentRoom != null) {
             currentRoom.removeClient(this);
-            currentRoom.broadcastMessage("[" + username + " leaves the room]");
-            out.println("Left room: " + currentRoom.getRoomName());
+            currentRoom.announce("[" + username + " leaves the room]");
+            sendMessage(OutboundMessage.of(WireProtocol.LEFT, currentRoom.getRoomId(), "Left room: " + currentRoom.getRoomName()));
         }
         currentRoom = room;
-        currentRoom.addClient(this);
-        out.println("Joined chat with " + currentRoom.getRoomName());
+        room.announce("[" + username + " enters the room]");
+        sendMessage(OutboundMessage.of(WireProtocol.JOINED, room.getRoomId(), "Joined chat with " + currentRoom.getRoomName()));
 
 
     }
 
     private void listLLMRooms() {
         try {
-            List<String> models = LLMService.listAvailableModels("http://localhost:11434");
+            List<String> models = LLMService.listAvailableModels(Server.getLLMHost());
             if (models.isEmpty()) {
-                out.println("No models available.");
+                sendMessage("No models available.");
             } else {
-                out.println("Available LLM models:");
+                sendMessage("Available LLM models:");
                 for (String model : models) {
-                    out.println("- " + model);
+                    sendMessage("- " + model);
                 }
             }
         } catch (Exception e) {
-            out.println("Failed to fetch models: " + e.getMessage());
+            sendMessage("Failed to fetch models: " + e.getMessage());
         }
     }
 
 
-    private void listRooms() {
-        roomMapLock.lock();
-        try {
-            if (roomMap.isEmpty()) {
-                out.println("No rooms available.");
+    /**
+     * LIST [prefix] [page]: one page of the rooms, in name order. A single number is a page.
+     */
+    private void listRooms(String arguments) {
+        String prefix = arguments;
+        int page = 1;
+        int space = arguments.lastIndexOf(' ');
+        String last = arguments.substring(space + 1);
+        if (!last.isEmpty() && last.chars().allMatch(Character::isDigit)) {
+            try {
+                page = Integer.parseInt(last);
+            } catch (NumberFormatException e) {
+                page = 0;
+            }
+            prefix = space < 0 ? "" : arguments.substring(0, space).trim();
+        }
+        if (page <= 0) {
+            sendMessage("Usage: LIST [prefix] [page]");
+            return;
+        }
+
+        long skip = (long) (page - 1) * LIST_PAGE_SIZE;
+        List<String> names = skip > Integer.MAX_VALUE ? List.of()
+                : rooms.list(prefix, (int) skip, LIST_PAGE_SIZE + 1);
+        if (names.isEmpty()) {
+            if (page > 1) {
+                sendMessage("No more rooms.");
+            } else if (prefix.isEmpty()) {
+                sendMessage("No rooms available.");
             } else {
-                out.println("Available rooms:");
-                for (String roomName : roomMap.keySet()) {
-                    out.println("- " + roomName);
-                }
+                sendMessage("No rooms starting with " + prefix + ".");
             }
-        } finally {
-            roomMapLock.unlock();
+            return;
+        }
+        boolean more = names.size() > LIST_PAGE_SIZE;
+        sendMessage(page > 1 ? "Available rooms (page " + page + "):" : "Available rooms:");
+        for (String roomName : names.subList(0, Math.min(names.size(), LIST_PAGE_SIZE))) {
+            sendMessage("- " + roomName);
+        }
+        if (more) {
+            sendMessage("More rooms: LIST " + (prefix.isEmpty() ? "" : prefix + " ") + (page + 1));
         }
     }
 
 
     private void sendMessageToRoom(String message) throws IOException, InterruptedException {
         if (currentRoom == null) {
-            out.println("You are not in a room. Use JOIN <room_name> to join a room.");
+            sendMessage("You are not in a room. Use JOIN <room_name> to join a room.");
+            return;
+        }
+        try {
+            currentRoom.publish(username + ": " + message);
+        } catch (IOException e) {
+            sendMessage("Message not sent: " + e.getMessage() + ". Please try again in a moment.");
+        }
+    }
+
+    private void showHistory(String countArgument) {
+        if (currentRoom == null) {
+            sendMessage("You are not in a room. Use JOIN <room_name> to join a room.");
             return;
         }
-        currentRoom.broadcastMessage(username + ": " + message);
-        currentRoom.addMessage(username + ": " + message);
 
+        int count = DEFAULT_HISTORY_COUNT;
+        if (!countArgument.isEmpty()) {
+            try {
+                count = Integer.parseInt(countArgument);
+            } catch (NumberFormatException e) {
+                count = -1;
+            }
+            if (count <= 0) {
+                sendMessage("Usage: HISTORY [n]");
+                return;
+            }
+            count = Math.min(count, MAX_HISTORY_COUNT);
+        }
+
+        List<String> recent = currentRoom.getRecentMessages(count);
+        if (recent.isEmpty()) {
+            sendMessage("No messages in " + currentRoom.getRoomName() + " yet.");
+            return;
+        }
+        sendMessage("Last " + recent.size() + " messages in " + currentRoom.getRoomName() + ":");
+        for (String message : recent) {
+            sendMessage(OutboundMessage.roomMessage(currentRoom.getRoomId(), WireProtocol.FLAG_HISTORY, message));
+        }
     }
 
     public void sendMessage(String message) {
-        out.println(message);
+        sendMessage(OutboundMessage.text(message));
+    }
+
+    public void sendMessage(OutboundMessage message) {
+        if (!outbound.offer(message) && outbound.getPolicy() == OutboundQueue.OverflowPolicy.DISCONNECT && !cleanedUp
+                && disconnecting.compareAndSet(false, true)) {
+            Log.warn("Outbound queue full for {}, disconnecting slow client", username);
+            disconnect();
+        }
     }
 
     private void leaveRoom() {
         if (currentRoom != null) {
             currentRoom.removeClient(this);
-            currentRoom.broadcastMessage("[" + username + " leaves the room]");
-            out.println("Left room: " + currentRoom.getRoomName());
+            currentRoom.announce("[" + username + " leaves the room]");
+            sendMessage(OutboundMessage.of(WireProtocol.LEFT, currentRoom.getRoomId(), "Left room: " + currentRoom.getRoomName()));
             currentRoom = null;
         } else {
-            out.println("You are not in a room.");
+            sendMessage("You are not in a room.");
+        }
+    }
+
+    private void showStats() {
+        if (!Server.isAdmin(username)) {
+            sendMessage("STATS is only available to administrators.");
+            return;
+        }
+        ServerMetrics metrics = Server.getMetrics();
+        if (metrics == null) {
+            sendMessage("Metrics are not available.");
+            return;
+        }
+        for (String line : metrics.report()) {
+            sendMessage(line);
         }
     }
 
     private void showHelp() {
-        out.println("Available commands:");
-        out.println("JOIN <room_name> - Join a room");
-        out.println("LIST - List available rooms");
-        out.println("LLM LIST - List available LLM rooms");
-        out.println("LLM JOIN <llm_name> - Join a LLM room");
-        out.println("SEND <message> - Send a message to the current room");
-        out.println("LEAVE - Leave the current room");
-        out.println("HELP - Show this help message");
-        out.println("QUIT - Disconnect from the server");
+        sendMessage("Available commands:");
+        sendMessage("JOIN <room_name> - Join a room");
+        sendMessage("LIST [prefix] [page] - List available rooms, a page at a time");
+        sendMessage("LLM LIST - List available LLM rooms");
+        sendMessage("LLM JOIN <llm_name> - Join a LLM room");
+        sendMessage("SEND <message> - Send a message to the current room");
+        sendMessage("LEAVE - Leave the current room");
+        sendMessage("HISTORY [n] - Show the last n messages of the current room");
+        sendMessage("STATS - Show server metrics (administrators only)");
+        sendMessage("HELP - Show this help message");
+        sendMessage("QUIT - Disconnect from the server");
+    }
+
+    public int getOutboundQueueDepth() {
+        return outbound.size();
+    }
+
+    public int getOutboundQueueMaxDepth() {
+        return outbound.getMaxDepth();
+    }
+
+    public long getOutboundDroppedCount() {
+        return outbound.getDroppedCount();
+    }
+
+    /**
+     * Messages written to all clients so far.
+     */
+    public static long getMessagesWritten() {
+        return messagesWritten.sum();
+    }
+
+    /**
+     * Writes to client transports so far; each is one TLS record per 16 KiB and one syscall
+     * on the blocking server, and at most that on the NIO server, which may merge them.
+     */
+    public static long getTransportWrites() {
+        return transportWrites.sum();
+    }
+
+    /**
+     * Plaintext bytes written to all clients so far, before TLS framing.
+     */
+    public static long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * Closes the outbound queue at once, so nothing more is queued for this client, and the
+     * transport on a thread of its own: closing a TLS socket can wait for the writer stuck on
+     * this same client, and the caller may be a broadcast holding its room's lock.
+     */
+    private void disconnect() {
+        outbound.close();
+        Thread.startVirtualThread(() -> {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                Log.warn("Error closing socket for {}", username);
+            }
+        });
+    }
+
+    private void countClosed() {
+        if (connectionCounted.compareAndSet(true, false)) {
+            ServerMetrics.recordConnectionClosed();
+        }
     }
 
     private void closeResources() {
+        countClosed();
+        outbound.close();
         try {
+            // Close the transport first so a writer blocked on a dead peer lets go of the streams
+            if (connection != null && !connection.isClosed()) {
+                connection.close();
+            }
             if (in != null) {
                 in.close();
             }
-            if (out != null) {
-                out.close();
-            }
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-            }
         } catch (IOException e) {
-            System.out.println("Error closing resources: " + e.getMessage());
+            Log.warn("Error closing resources: {}", e.getMessage());
         }
     }
 
+    /**
+     * Logs out: unlike a dropped connection, the token handed out at login can no longer be
+     * used to reconnect.
+     */
+    private void quit() {
+        sendMessage("Goodbye " + username + "!");
+        if (authToken != null) {
+            Server.getTokenManager().invalidateToken(authToken);
+        }
+        cleanup();
+    }
+
     private void cleanup() {
+        cleanedUp = true;
+        countClosed();
         if (currentRoom != null) {
             currentRoom.removeClient(this);
-            currentRoom.broadcastMessage("[" + username + " leaves the room]");
+            currentRoom.announce("[" + username + " leaves the room]");
         }
 
-        activeClientsLock.lock();
-        try {
-            activeClients.remove(this);
-        } finally {
-            activeClientsLock.unlock();
+        sessions.release(username, this);
+
+        outbound.close();
+        if (writerThread != null && writerThread != Thread.currentThread()) {
+            try {
+                writerThread.join(WRITER_DRAIN_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
 
         try {
-            socket.close();
+            connection.close();
         } catch (IOException e) {
-            System.out.println("Error closing socket for " + username);
+            Log.warn("Error closing socket for {}", username);
         }
     }
 
+    /**
+     * Lets the writer hand its buffer to the socket directly. {@link ByteArrayOutputStream#writeTo}
+     * is synchronized, and a virtual thread blocked on a slow client inside it pins its carrier,
+     * stalling every other virtual thread on it.
+     */
+    private static final class Batch extends ByteArrayOutputStream {
+        Batch(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
 }
@@ -0,0 +1,423 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One server of a cluster. Every room is owned by one live node, chosen by consistent hashing
+ * of the room name; the owner puts the room's messages in order and relays them to all other
+ * nodes over a node-to-node TCP bus, so members see the same stream wherever they are connected.
+ *
+ * <p>Each node dials every other node and only sends on that link; frames from a peer arrive
+ * on the link the peer dialed. A peer counts as live while our link to it is up and we heard
+ * from it within the timeout. When the live set changes the ring is rebuilt, which moves only
+ * the rooms next to the node that came or went. Nothing is handed over when a room moves: every
+ * node keeps its own copy of every room's history and log from the messages relayed to it, and
+ * the new owner carries on from its copy. Messages a node missed while it was cut off are not
+ * sent to it afterwards.
+ *
+ * <p>While a room's owner is live but our link to it is down or backed up, messages for the room
+ * are refused rather than put in order here, so a lost link does not give the room a second
+ * owner. Once the peer times out it leaves the ring and the room gets a new owner. A partition
+ * that lasts longer than that splits the cluster: there is no quorum, so each side rebuilds its
+ * ring from the nodes it can see and owns the room on its own, and the two histories are never
+ * merged when the sides meet again.
+ *
+ * <p>Frames are {@code [int length][byte type][fields]}, strings as {@code [int length][utf-8]}.
+ * The bus is plain TCP and meant for a private network.
+ */
+public class ClusterNode {
+    private static final byte HELLO = 1;
+    private static final byte PING = 2;
+    private static final byte PUBLISH = 3;
+    private static final byte DELIVER = 4;
+    private static final byte ROOMS = 5;
+
+    private static final long HEARTBEAT_MILLIS = 1000;
+    private static final long PEER_TIMEOUT_MILLIS = 5000;
+    private static final long RECONNECT_MILLIS = 2000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int MAX_FRAME_BYTES = 1024 * 1024;
+    private static final int LINK_QUEUE_CAPACITY = 65536;
+    private static final int ROOMS_FRAME_CHARS = 64 * 1024;
+
+    private final String selfId;
+    private final List<String> peerIds = new ArrayList<>();
+    private final RoomRegistry rooms;
+    private final Map<String, PeerLink> links = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastHeard = new ConcurrentHashMap<>();
+    private volatile HashRing ring;
+    private volatile boolean running = true;
+    private ServerSocket busSocket;
+
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong relayed = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+
+    /**
+     * @param selfId  this node's bus address, {@code host:port}
+     * @param nodeIds bus addresses of all nodes; may include {@code selfId}
+     */
+    public ClusterNode(String selfId, List<String> nodeIds, RoomRegistry rooms) {
+        this.selfId = selfId;
+        for (String nodeId : nodeIds) {
+            if (!nodeId.equals(selfId) && !peerIds.contains(nodeId)) {
+                peerIds.add(nodeId);
+            }
+        }
+        this.rooms = rooms;
+        this.ring = new HashRing(List.of(selfId));
+    }
+
+    public void start() throws IOException {
+        busSocket = new ServerSocket();
+        busSocket.bind(address(selfId));
+        Thread.ofPlatform().name("cluster-accept").daemon(true).start(this::acceptLoop);
+        for (String peerId : peerIds) {
+            Thread.startVirtualThread(() -> dialLoop(peerId));
+        }
+        Thread.startVirtualThread(this::heartbeatLoop);
+        Log.info("Cluster node {} started with peers {}", selfId, peerIds);
+    }
+
+    public String getSelfId() {
+        return selfId;
+    }
+
+    public Set<String> getLiveNodes() {
+        return ring.getNodes();
+    }
+
+    public String ownerOf(String roomName) {
+        return ring.ownerOf(roomName);
+    }
+
+    public long getForwardedCount() {
+        return forwarded.get();
+    }
+
+    public long getRelayedCount() {
+        return relayed.get();
+    }
+
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     * Sends a message to the owner of its room if that is another node.
+     *
+     * @return false if this node owns the room and must deliver it
+     * @throws IOException if another node owns the room but cannot be reached right now
+     */
+    public boolean forwardToOwner(String roomName, String message, boolean persist) throws IOException {
+        String owner = ring.ownerOf(roomName);
+        if (owner == null || owner.equals(selfId)) {
+            return false;
+        }
+        PeerLink link = links.get(owner);
+        if (link == null || !link.send(encode(PUBLISH, roomName, persist, message))) {
+            throw new IOException("owner " + owner + " of room " + roomName + " is unreachable");
+        }
+        forwarded.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Relays a message this node has just delivered as the room's owner to every other node.
+     * Called while the room's broadcast lock is held, so peers receive the room's messages in
+     * the owner's order.
+     */
+    public void fanOut(String roomName, String message, boolean persist) {
+        if (links.isEmpty()) {
+            return;
+        }
+        byte[] frame = encode(DELIVER, roomName, persist, message);
+        for (PeerLink link : links.values()) {
+            if (link.send(frame)) {
+                relayed.incrementAndGet();
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            if (busSocket != null) {
+                busSocket.close();
+            }
+        } catch (IOException ignored) {}
+        for (PeerLink link : links.values()) {
+            link.close();
+        }
+    }
+
+    // ---- Membership ----
+
+    private void heartbeatLoop() {
+        byte[] ping = encode(PING);
+        while (running) {
+            try {
+                Thread.sleep(HEARTBEAT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            for (PeerLink link : links.values()) {
+                link.send(ping);
+            }
+            updateMembership();
+        }
+    }
+
+    private void updateMembership() {
+        long now = System.currentTimeMillis();
+        Set<String> live = new TreeSet<>();
+        live.add(selfId);
+        for (String peerId : peerIds) {
+            Long heard = lastHeard.get(peerId);
+            if (links.containsKey(peerId) && heard != null && now - heard <= PEER_TIMEOUT_MILLIS) {
+                live.add(peerId);
+            }
+        }
+
+        HashRing previous = ring;
+        if (live.equals(previous.getNodes())) {
+            return;
+        }
+        HashRing next = new HashRing(live);
+        ring = next;
+
+        int moved = 0;
+        for (String roomName : rooms.getNames()) {
+            if (!next.ownerOf(roomName).equals(previous.ownerOf(roomName))) {
+                moved++;
+            }
+        }
+        Log.info("Cluster membership changed to {}; {} of {} rooms changed owner and continue from this node's copy",
+                live, moved, rooms.size());
+    }
+
+    // ---- Outbound links ----
+
+    private void dialLoop(String peerId) {
+        while (running) {
+            if (!links.containsKey(peerId)) {
+                try {
+                    Socket socket = new Socket();
+                    socket.connect(address(peerId), CONNECT_TIMEOUT_MILLIS);
+                    socket.setTcpNoDelay(true);
+                    PeerLink link = new PeerLink(peerId, socket);
+                    link.send(encode(HELLO, selfId));
+                    // Let the peer learn about our rooms, so LIST shows them everywhere
+                    sendRooms(link);
+                    links.put(peerId, link);
+                    link.start();
+                    Log.info("Connected to cluster peer {}", peerId);
+                } catch (IOException e) {
+                    // Peer not up (yet); try again later
+                }
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private class PeerLink {
+        private final String peerId;
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(LINK_QUEUE_CAPACITY);
+        private volatile boolean closed;
+
+        PeerLink(String peerId, Socket socket) throws IOException {
+            this.peerId = peerId;
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        }
+
+        void start() {
+            Thread.startVirtualThread(this::writeLoop);
+        }
+
+        boolean send(byte[] frame) {
+            if (closed) {
+                return false;
+            }
+            if (!queue.offer(frame)) {
+                Log.warn("Link to cluster peer {} is backed up; dropping it", peerId);
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        private void writeLoop() {
+            try {
+                while (!closed) {
+                    byte[] frame = queue.take();
+                    out.writeInt(frame.length);
+                    out.write(frame);
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                Log.warn("Lost link to cluster peer {}: {}", peerId, e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            closed = true;
+            links.remove(peerId, this);
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    // ---- Inbound links ----
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = busSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread.startVirtualThread(() -> readLoop(socket));
+            } catch (IOException e) {
+                if (running) {
+                    Log.error("Cluster bus accept failed: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        String peerId = null;
+        try (socket; DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024))) {
+            while (running) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_FRAME_BYTES) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                DataInputStream fields = new DataInputStream(new ByteArrayInputStream(frame));
+                byte type = fields.readByte();
+
+                if (type == HELLO) {
+                    peerId = readString(fields);
+                } else if (peerId == null) {
+                    throw new IOException("Frame before HELLO");
+                }
+                lastHeard.put(peerId, System.currentTimeMillis());
+
+                if (type == PUBLISH || type == DELIVER) {
+                    String roomName = readString(fields);
+                    boolean persist = fields.readBoolean();
+                    String message = readString(fields);
+                    received.incrementAndGet();
+                    // As the owner, put a forwarded message in order and relay it; otherwise just show it
+                    DefaultRoom room = rooms.acquire(roomName);
+                    try {
+                        room.deliver(message, persist, type == PUBLISH);
+                    } finally {
+                        rooms.release(room);
+                    }
+                } else if (type == ROOMS) {
+                    List<String> names = new ArrayList<>();
+                    for (String roomName : readString(fields).split("\n")) {
+                        if (!roomName.isEmpty()) {
+                            names.add(roomName);
+                        }
+                    }
+                    rooms.addNames(names);
+                }
+            }
+        } catch (IOException e) {
+            if (running && peerId != null) {
+                Log.info("Cluster peer {} disconnected{}", peerId, e.getMessage() != null ? ": " + e.getMessage() : "");
+            }
+        }
+    }
+
+    // ---- Encoding ----
+
+    /**
+     * Sends the names of our rooms in frames of up to {@link #ROOMS_FRAME_CHARS} characters.
+     */
+    private void sendRooms(PeerLink link) {
+        StringBuilder names = new StringBuilder();
+        for (String roomName : rooms.getNames()) {
+            if (names.length() + roomName.length() > ROOMS_FRAME_CHARS && names.length() > 0) {
+                link.send(encode(ROOMS, names.toString()));
+                names.setLength(0);
+            }
+            names.append(roomName).append('\n');
+        }
+        if (names.length() > 0) {
+            link.send(encode(ROOMS, names.toString()));
+        }
+    }
+
+    private static byte[] encode(byte type, Object... fields) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            for (Object field : fields) {
+                if (field instanceof Boolean flag) {
+                    out.writeBoolean(flag);
+                } else {
+                    byte[] utf8 = ((String) field).getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(utf8.length);
+                    out.write(utf8);
+                }
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Bad string length " + length);
+        }
+        byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    private static InetSocketAddress address(String nodeId) {
+        int colon = nodeId.lastIndexOf(':');
+        return new InetSocketAddress(nodeId.substring(0, colon), Integer.parseInt(nodeId.substring(colon + 1)));
+    }
+}
@@ -0,0 +1,410 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Usernames and password hashes.
+ *
+ * <p>Lookups are served from a concurrent in-memory index. Registrations are appended to
+ * {@code users.txt}, which acts as a write-ahead log: a single writer thread writes queued
+ * registrations in batches and fsyncs once per batch (group commit), and a registration only
+ * succeeds once its batch is on disk. Every so often a background thread dumps the accounts
+ * that are on disk into {@code users.snapshot} next to the log; the writer then drops the part
+ * of the log the snapshot covers, so startup reads one sorted file plus a short tail. The two
+ * files together hold the accounts. Both use the original {@code username:hash} line format,
+ * and replaying a line twice is harmless.
+ */
+public class CredentialStore {
+    private static final long SNAPSHOT_INTERVAL_MILLIS = Long.getLong("chat.credentials.snapshotSeconds", 300) * 1000;
+    private static final int SNAPSHOT_AFTER_RECORDS = Integer.getInteger("chat.credentials.snapshotRecords", 100000);
+    private static final int MAX_BATCH = 1024;
+    private static final PendingRegistration SHUTDOWN = new PendingRegistration(null, null, null);
+    private static final PendingRegistration COMPACT = new PendingRegistration(null, null, null);
+    private static final PendingRegistration SNAPSHOT_FAILED = new PendingRegistration(null, null, null);
+
+    private final Path logPath;
+    private final Path snapshotPath;
+    private final int snapshotAfterRecords;
+    private final long snapshotIntervalMillis;
+    private final Map<String, Account> credentials;
+    private final BlockingQueue<PendingRegistration> pending = new LinkedBlockingQueue<>();
+    private FileChannel log;
+    private final Thread writer;
+    // Guards running together with the enqueue, so nothing is queued behind SHUTDOWN
+    private final Lock closeLock = new ReentrantLock();
+    private boolean running = true;
+    private int recordsSinceSnapshot;
+    private long lastSnapshotMillis = System.currentTimeMillis();
+    private boolean snapshotRunning;
+    private volatile long snapshotCoversLogBytes;
+
+    private final AtomicLong registrations = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong snapshots = new AtomicLong();
+
+    public CredentialStore(String logFile, String snapshotFile) throws IOException {
+        this(logFile, snapshotFile, SNAPSHOT_AFTER_RECORDS, SNAPSHOT_INTERVAL_MILLIS);
+    }
+
+    CredentialStore(String logFile, String snapshotFile, int snapshotAfterRecords, long snapshotIntervalMillis)
+            throws IOException {
+        this.logPath = Paths.get(logFile);
+        this.snapshotPath = Paths.get(snapshotFile);
+        this.snapshotAfterRecords = snapshotAfterRecords;
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+        if (logPath.getParent() != null) {
+            Files.createDirectories(logPath.getParent());
+        }
+
+        long start = System.nanoTime();
+        this.credentials = new ConcurrentHashMap<>(estimateEntries(), 0.75f, 4);
+        int fromSnapshot = load(snapshotPath);
+        int fromLog = load(logPath);
+        recordsSinceSnapshot = fromLog;
+        Log.info("Loaded {} users in {} ms", credentials.size(), (System.nanoTime() - start) / 1_000_000);
+        Log.debug("Credential records: {} from snapshot, {} from log", fromSnapshot, fromLog);
+
+        this.log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        endLogWithNewline();
+        this.writer = Thread.ofPlatform().name("credential-writer").daemon(true).start(this::writeLoop);
+    }
+
+    public boolean contains(String username) {
+        return credentials.containsKey(username);
+    }
+
+    /**
+     * The stored hash of a user, or null.
+     */
+    public String getHash(String username) {
+        Account account = credentials.get(username);
+        return account == null ? null : account.hash;
+    }
+
+    public int size() {
+        return credentials.size();
+    }
+
+    /**
+     * Registers a user and waits until the registration is durable.
+     *
+     * @return false if the username is already taken
+     * @throws IOException if the registration could not be written; it is then undone
+     */
+    public boolean register(String username, String hashedPassword) throws IOException, InterruptedException {
+        if (username.indexOf(':') >= 0 || username.indexOf('\n') >= 0 || username.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Username may not contain ':' or line breaks");
+        }
+        Account account = new Account(hashedPassword, false);
+        if (credentials.putIfAbsent(username, account) != null) {
+            return false;
+        }
+
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        closeLock.lock();
+        try {
+            if (!running) {
+                credentials.remove(username, account);
+                throw new IOException("Credential store is closed");
+            }
+            pending.add(new PendingRegistration(username, account, durable));
+        } finally {
+            closeLock.unlock();
+        }
+        try {
+            durable.get();
+            return true;
+        } catch (ExecutionException e) {
+            credentials.remove(username, account);
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException io ? io : new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    public long getRegistrationCount() {
+        return registrations.get();
+    }
+
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    public long getSnapshotCount() {
+        return snapshots.get();
+    }
+
+    /**
+     * Writes out queued registrations and stops the writer thread.
+     */
+    public void close() {
+        closeLock.lock();
+        try {
+            if (running) {
+                running = false;
+                pending.add(SHUTDOWN);
+            }
+        } finally {
+            closeLock.unlock();
+        }
+        try {
+            writer.join();
+            log.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            Log.error("Error closing credential log: {}", e.getMessage());
+        }
+    }
+
+    private int load(Path file) throws IOException {
+        int loaded = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(':');
+                // A line torn by a crash has no complete hash; skip it
+                if (separator <= 0 || !isCompleteHash(line.substring(separator + 1))) {
+                    continue;
+                }
+                credentials.put(line.substring(0, separator), new Account(line.substring(separator + 1), true));
+                loaded++;
+            }
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        return loaded;
+    }
+
+    /**
+     * Whether {@code hash} is a whole bcrypt hash: "$2a$", two cost digits, '$' and 53 characters
+     * of salt and digest.
+     */
+    private static boolean isCompleteHash(String hash) {
+        return hash.length() == 60 && hash.startsWith("$2a$") && Character.isDigit(hash.charAt(4))
+                && Character.isDigit(hash.charAt(5)) && hash.charAt(6) == '$';
+    }
+
+    private int estimateEntries() throws IOException {
+        long bytes = (Files.exists(snapshotPath) ? Files.size(snapshotPath) : 0) + (Files.exists(logPath) ? Files.size(logPath) : 0);
+        // A line is about 70 bytes: the bcrypt hash alone is 60
+        return (int) Math.min(Integer.MAX_VALUE / 2, Math.max(16, bytes / 70));
+    }
+
+    private void endLogWithNewline() throws IOException {
+        long size = log.size();
+        ByteBuffer last = ByteBuffer.allocate(1);
+        if (size > 0 && log.read(last, size - 1) == 1 && last.get(0) != '\n') {
+            log.write(ByteBuffer.wrap(new byte[] {'\n'}), size);
+        }
+        log.position(log.size());
+    }
+
+    // ---- Writer thread ----
+
+    private void writeLoop() {
+        List<PendingRegistration> batch = new ArrayList<>(MAX_BATCH);
+        StringBuilder lines = new StringBuilder();
+        boolean shutdown = false;
+        while (!shutdown) {
+            try {
+                PendingRegistration first = pending.poll(snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch, MAX_BATCH - 1);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            for (PendingRegistration registration : batch) {
+                if (registration == SHUTDOWN) {
+                    shutdown = true;
+                } else if (registration == COMPACT) {
+                    dropLogBefore(snapshotCoversLogBytes);
+                    snapshotRunning = false;
+                } else if (registration == SNAPSHOT_FAILED) {
+                    snapshotRunning = false;
+                } else {
+                    lines.append(registration.username).append(':').append(registration.account.hash).append('\n');
+                }
+            }
+            if (!lines.isEmpty()) {
+                commit(batch, lines);
+            }
+            batch.clear();
+            lines.setLength(0);
+
+            long now = System.currentTimeMillis();
+            if (!shutdown && !snapshotRunning && (recordsSinceSnapshot >= snapshotAfterRecords
+                    || (recordsSinceSnapshot > 0 && now - lastSnapshotMillis >= snapshotIntervalMillis))) {
+                startSnapshot();
+                lastSnapshotMillis = now;
+            }
+        }
+    }
+
+    private void commit(List<PendingRegistration> batch, StringBuilder lines) {
+        IOException failure = null;
+        try {
+            ByteBuffer bytes = StandardCharsets.UTF_8.encode(lines.toString());
+            while (bytes.hasRemaining()) {
+                log.write(bytes);
+            }
+            log.force(false);
+        } catch (IOException e) {
+            Log.error("Error writing credential log: {}", e.getMessage());
+            failure = e;
+        }
+
+        int written = 0;
+        for (PendingRegistration registration : batch) {
+            if (registration.username == null) {
+                continue;
+            }
+            if (failure == null) {
+                registration.account.durable = true;
+                registration.durable.complete(null);
+                written++;
+            } else {
+                registration.durable.completeExceptionally(failure);
+            }
+        }
+        registrations.addAndGet(written);
+        recordsSinceSnapshot += written;
+        commits.incrementAndGet();
+    }
+
+    /**
+     * Dumps the index on a separate thread so registrations keep flowing. Every line in the log
+     * right now is already in the index and marked durable, so once the snapshot is in place that
+     * much of the log can go.
+     */
+    private void startSnapshot() {
+        long coveredBytes;
+        try {
+            coveredBytes = log.size();
+        } catch (IOException e) {
+            Log.error("Error reading credential log size: {}", e.getMessage());
+            return;
+        }
+        snapshotRunning = true;
+        recordsSinceSnapshot = 0;
+        Thread.ofPlatform().name("credential-snapshot").daemon(true).start(() -> {
+            if (writeSnapshot()) {
+                snapshotCoversLogBytes = coveredBytes;
+                pending.add(COMPACT);
+            } else {
+                pending.add(SNAPSHOT_FAILED);
+            }
+        });
+    }
+
+    /**
+     * Writes the durable part of the index to a new snapshot file and swaps it in atomically, so
+     * a crash leaves either the old or the new snapshot. A registration still waiting for its
+     * batch may yet be undone; it is left to the log, which it reaches after the covered part.
+     */
+    private boolean writeSnapshot() {
+        long start = System.nanoTime();
+        Path temporary = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        try {
+            List<Map.Entry<String, String>> accounts = new ArrayList<>(credentials.size());
+            for (Map.Entry<String, Account> entry : credentials.entrySet()) {
+                Account account = entry.getValue();
+                if (account.durable) {
+                    accounts.add(Map.entry(entry.getKey(), account.hash));
+                }
+            }
+            accounts.sort(Map.Entry.comparingByKey());
+            try (BufferedWriter out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, String> account : accounts) {
+                    out.write(account.getKey());
+                    out.write(':');
+                    out.write(account.getValue());
+                    out.write('\n');
+                }
+            }
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temporary, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            snapshots.incrementAndGet();
+            Log.info("Wrote credential snapshot of {} users in {} ms", accounts.size(), (System.nanoTime() - start) / 1_000_000);
+            return true;
+        } catch (IOException e) {
+            Log.error("Error writing credential snapshot: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Replaces the log by the part written after {@code position}. The new log is written
+     * beside the old one and renamed over it, so a crash leaves one or the other.
+     */
+    private void dropLogBefore(long position) {
+        Path temporary = logPath.resolveSibling(logPath.getFileName() + ".tmp");
+        try {
+            long size = log.size();
+            ByteBuffer tail = ByteBuffer.allocate((int) (size - position));
+            while (tail.hasRemaining() && log.read(tail, position + tail.position()) >= 0) {
+                // keep reading
+            }
+            tail.flip();
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (tail.hasRemaining()) {
+                    channel.write(tail);
+                }
+                channel.force(true);
+            }
+            Files.move(temporary, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            log.close();
+            log = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            log.position(log.size());
+        } catch (IOException e) {
+            Log.error("Error compacting credential log: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * A user's hash, and whether the line registering it is on disk yet. Compared by identity,
+     * so an undone registration only removes its own entry.
+     */
+    private static final class Account {
+        final String hash;
+        volatile boolean durable;
+
+        Account(String hash, boolean durable) {
+            this.hash = hash;
+            this.durable = durable;
+        }
+    }
+
+    private record PendingRegistration(String username, Account account, CompletableFuture<Void> durable) {
+    }
+}
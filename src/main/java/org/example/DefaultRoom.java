@@ -1,46 +1,272 @@
 package org.example;
 
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class DefaultRoom implements IRoom{
-    private String roomName;
-    private List<ClientHandler> clients;
-    private List<String> messages;
+    private final String roomName;
+    private final int roomId = Server.nextRoomId();
+    private final RoomMembers clients = new RoomMembers();
+    private final Lock broadcastLock = new ReentrantLock();
+    private final MessageHistory messages = MessageHistory.createDefault();
+    private final RoomLogStore logStore;
+    private volatile RoomLog log;
+    // Completed once the log is open and the history restored from it, or right away without a log
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+    private final AtomicBoolean opening = new AtomicBoolean();
+    private final ServerMetrics.Rate messageRate;
+
+    // Members plus holders through the registry; -1 once the room was evicted
+    private final AtomicInteger references = new AtomicInteger();
+    private volatile long idleSince = System.currentTimeMillis();
+    private final AtomicBoolean evictionQueued = new AtomicBoolean();
+    private final CompletableFuture<Void> retired = new CompletableFuture<>();
+    private RoomRegistry registry;
 
     public DefaultRoom(String roomName) {
         this.roomName = roomName;
-        this.clients = new ArrayList<>();
-        this.messages = new ArrayList<>();
+        this.messageRate = new ServerMetrics.Rate(roomName);
+        this.logStore = null;
+        ready.complete(null);
+    }
+
+    /**
+     * A room whose messages are persisted in {@code logStore}. Creating it touches no files; its
+     * log is opened and its recent history restored by {@link #open}, when it is first acquired.
+     */
+    public DefaultRoom(String roomName, RoomLogStore logStore) {
+        this.roomName = roomName;
+        this.messageRate = new ServerMetrics.Rate(roomName);
+        this.logStore = logStore;
     }
 
-    public synchronized String getRoomName() {
+    public String getRoomName() {
         return roomName;
     }
 
-    public synchronized void addClient(ClientHandler client) {
-        clients.add(client);
+    public int getRoomId() {
+        return roomId;
+    }
+
+    /**
+     * The caller must hold the room (see {@link RoomRegistry#acquire}) or already be one of
+     * its members, so that it cannot be evicted meanwhile.
+     */
+    public void addClient(ClientHandler client) {
+        if (clients.add(client)) {
+            references.incrementAndGet();
+        }
+    }
+
+    public void removeClient(ClientHandler client) {
+        if (clients.remove(client)) {
+            release();
+        }
+    }
+
+    /**
+     * Takes a reference, unless the room has already been evicted.
+     */
+    boolean acquire() {
+        while (true) {
+            int current = references.get();
+            if (current < 0) {
+                return false;
+            }
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Opens the room's log and restores its history, the first time; callers that come in
+     * meanwhile wait until that is done. The caller must hold the room.
+     */
+    void open() {
+        if (ready.isDone()) {
+            return;
+        }
+        if (!opening.compareAndSet(false, true)) {
+            ready.join();
+            return;
+        }
+        try {
+            RoomLog opened = logStore.open(roomName);
+            for (RoomLog.LoggedMessage message : opened.readRecent(messages.getCapacityBytes())) {
+                messages.append(message.text(), message.timestamp());
+            }
+            log = opened;
+        } catch (IOException e) {
+            Log.warn("Error opening log of room {}, keeping it in memory only: {}", roomName, e.getMessage());
+        } finally {
+            ready.complete(null);
+        }
+    }
+
+    void release() {
+        // Stamped before the count drops, so the evictor never sees a stale time on an idle room
+        idleSince = System.currentTimeMillis();
+        if (references.decrementAndGet() == 0 && registry != null) {
+            registry.roomIdle(this);
+        }
+    }
+
+    boolean isIdle() {
+        return references.get() == 0;
+    }
+
+    long getIdleSince() {
+        return idleSince;
+    }
+
+    /**
+     * Marks the room evicted if nobody has held it for {@code idleMillis}, and closes its log
+     * once the messages already sent to it are written. An evicted room cannot be acquired again.
+     */
+    boolean retire(long now, long idleMillis) {
+        if (references.get() != 0 || now - idleSince < idleMillis || !references.compareAndSet(0, -1)) {
+            return false;
+        }
+        RoomLog current = log;
+        if (current != null) {
+            current.retire();
+        }
+        return true;
+    }
+
+    /**
+     * Called by the registry once the evicted room is out of its map.
+     */
+    void retired() {
+        retired.complete(null);
+    }
+
+    /**
+     * Waits until the registry has let go of this evicted room, so a new one can take its name.
+     */
+    void awaitRetired() {
+        retired.join();
+    }
+
+    /**
+     * Whether the room's messages are kept on disk, so it can come back after being evicted.
+     */
+    boolean hasLoggedMessages() {
+        return log != null && messages.size() > 0;
+    }
+
+    boolean setEvictionQueued(boolean queued) {
+        return evictionQueued.compareAndSet(!queued, queued);
+    }
+
+    void setRegistry(RoomRegistry registry) {
+        this.registry = registry;
+    }
+
+    public List<ClientHandler> getClients() {
+        return clients.snapshot();
     }
 
-    public synchronized void removeClient(ClientHandler client) {
-        clients.remove(client);
+    /**
+     * Chat messages delivered in this room on this node, and their rate.
+     */
+    public ServerMetrics.Rate getMessageRate() {
+        return messageRate;
     }
 
-    public synchronized List<ClientHandler> getClients() {
-        return clients;
+    public List<String> getMessages() {
+        return messages.all();
     }
 
-    public synchronized List<String> getMessages() {
-        return messages;
+    public List<String> getRecentMessages(int count) {
+        return messages.last(count);
     }
 
-    public synchronized void addMessage(String message) {
-        messages.add(message);
+    public void addMessage(String message) {
+        messages.append(message);
+        RoomLog current = log;
+        if (current != null) {
+            current.append(message);
+        }
+    }
+
+    /**
+     * In a cluster the message goes through the room's owner node, which puts it in order and
+     * relays it to every node; see {@link ClusterNode}.
+     *
+     * @throws IOException if the owner is another node that cannot be reached; nobody got it
+     */
+    @Override
+    public void publish(String message) throws IOException {
+        ClusterNode cluster = Server.getCluster();
+        if (cluster != null && cluster.forwardToOwner(roomName, message, true)) {
+            return;
+        }
+        deliver(message, true, cluster != null);
+    }
+
+    /**
+     * Like {@link #publish} but not kept. If the owner cannot be reached, only the members on
+     * this node are told.
+     */
+    @Override
+    public void announce(String message) {
+        ClusterNode cluster = Server.getCluster();
+        try {
+            if (cluster != null && cluster.forwardToOwner(roomName, message, false)) {
+                return;
+            }
+            deliver(message, false, cluster != null);
+        } catch (IOException e) {
+            deliver(message, false, false);
+        }
+    }
+
+    /**
+     * Shows a message to the members on this node and, if {@code persist}, keeps it. As the
+     * room's owner ({@code relay}) also passes it on to the other nodes, in the same order.
+     */
+    void deliver(String message, boolean persist, boolean relay) {
+        OutboundMessage outbound = OutboundMessage.roomMessage(roomId, persist ? 0 : WireProtocol.FLAG_ANNOUNCE, message);
+        broadcastLock.lock();
+        try {
+            fanOut(outbound);
+            if (persist) {
+                messageRate.mark();
+                addMessage(message);
+            }
+            if (relay) {
+                Server.getCluster().fanOut(roomName, message, persist);
+            }
+        } finally {
+            broadcastLock.unlock();
+        }
+    }
+
+    public void broadcastMessage(String message) {
+        // Only orders concurrent broadcasts so every member sees the same sequence;
+        // sendMessage just enqueues and membership changes never wait on this lock
+        OutboundMessage outbound = OutboundMessage.roomMessage(roomId, (byte) 0, message);
+        broadcastLock.lock();
+        try {
+            fanOut(outbound);
+        } finally {
+            broadcastLock.unlock();
+        }
     }
 
-    public synchronized void broadcastMessage(String message) {
-        for (ClientHandler client : clients) {
-            client.sendMessage(message);
+    private void fanOut(OutboundMessage outbound) {
+        long start = System.nanoTime();
+        List<ClientHandler> members = clients.snapshot();
+        for (ClientHandler client : members) {
+            client.sendMessage(outbound);
         }
+        ServerMetrics.recordFanOut(members.size(), System.nanoTime() - start);
     }
 }
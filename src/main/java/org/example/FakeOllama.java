@@ -0,0 +1,153 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+/**
+ * Stand-in for Ollama's {@code /api/tags} and {@code /api/chat}, so LLM rooms can be load
+ * tested without a model. Replies are streamed like Ollama's: one JSON line per token, the
+ * first after {@code chat.fakeOllama.firstTokenMillis} and the rest every
+ * {@code chat.fakeOllama.tokenMillis}.
+ *
+ * <p>A reply starts with the last user message, then {@code chat.fakeOllama.replyTokens} filler
+ * words, so whoever sent the prompt can recognize the answer to it.
+ *
+ * <p>Usage: {@code java org.example.FakeOllama [port]}, then start the server with
+ * {@code -Dchat.llm.host=http://localhost:<port>}.
+ */
+public class FakeOllama {
+    private static final List<String> MODELS = List.of(System.getProperty("chat.fakeOllama.models", "fake:latest").split(","));
+    private static final long FIRST_TOKEN_MILLIS = Long.getLong("chat.fakeOllama.firstTokenMillis", 200);
+    private static final long TOKEN_MILLIS = Long.getLong("chat.fakeOllama.tokenMillis", 20);
+    private static final int REPLY_TOKENS = Integer.getInteger("chat.fakeOllama.replyTokens", 30);
+    private static final String[] WORDS = {"the", "model", "thinks", "about", "your", "message", "and", "answers", "it", "slowly"};
+
+    private final HttpServer server;
+
+    public FakeOllama(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        server.createContext("/api/tags", this::handleTags);
+        server.createContext("/api/chat", this::handleChat);
+        // Every streaming reply sleeps between tokens; a virtual thread each keeps that cheap
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 11434;
+        new FakeOllama(port).start();
+        System.out.println("Fake Ollama listening on port " + port + " with models " + MODELS);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handleTags(HttpExchange exchange) throws IOException {
+        JSONArray models = new JSONArray();
+        for (String model : MODELS) {
+            models.put(new JSONObject().put("name", model));
+        }
+        respond(exchange, 200, new JSONObject().put("models", models).toString());
+    }
+
+    private void handleChat(HttpExchange exchange) throws IOException {
+        JSONObject request;
+        try (InputStream in = exchange.getRequestBody()) {
+            request = new JSONObject(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        } catch (JSONException e) {
+            respond(exchange, 400, new JSONObject().put("error", "bad request: " + e.getMessage()).toString());
+            return;
+        }
+
+        String model = request.optString("model");
+        if (!MODELS.contains(model) && !MODELS.contains(model + ":latest")) {
+            respond(exchange, 404, new JSONObject().put("error", "model '" + model + "' not found").toString());
+            return;
+        }
+
+        String prompt = lastUserMessage(request.optJSONArray("messages"));
+        if (!request.optBoolean("stream", true)) {
+            StringBuilder reply = new StringBuilder(prompt);
+            for (int i = 0; i < REPLY_TOKENS; i++) {
+                reply.append(' ').append(WORDS[i % WORDS.length]);
+            }
+            pause(FIRST_TOKEN_MILLIS + REPLY_TOKENS * TOKEN_MILLIS);
+            respond(exchange, 200, chunk(model, reply.toString(), true));
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            pause(FIRST_TOKEN_MILLIS);
+            writeLine(out, chunk(model, prompt, false));
+            for (int i = 0; i < REPLY_TOKENS; i++) {
+                pause(TOKEN_MILLIS);
+                writeLine(out, chunk(model, " " + WORDS[i % WORDS.length], false));
+            }
+            writeLine(out, chunk(model, "", true));
+        }
+    }
+
+    private static String lastUserMessage(JSONArray messages) {
+        if (messages == null) {
+            return "";
+        }
+        for (int i = messages.length() - 1; i >= 0; i--) {
+            JSONObject message = messages.optJSONObject(i);
+            if (message != null && "user".equals(message.optString("role"))) {
+                return message.optString("content");
+            }
+        }
+        return "";
+    }
+
+    private static String chunk(String model, String content, boolean done) {
+        return new JSONObject()
+                .put("model", model)
+                .put("message", new JSONObject().put("role", "assistant").put("content", content))
+                .put("done", done)
+                .toString();
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -7,15 +7,47 @@ public interface IRoom {
 
     public String getRoomName();
 
+    /**
+     * Number identifying the room on this server, carried in binary frames about it.
+     */
+    public int getRoomId();
+
     public void addClient(ClientHandler client);
 
     public void removeClient(ClientHandler client);
 
+    /**
+     * Returns an immutable snapshot of the members. It is safe to iterate while other
+     * clients join or leave, and never reflects changes made after it was taken.
+     */
     public List<ClientHandler> getClients();
 
+    /**
+     * Returns a copy of the room's retained messages.
+     */
     public List<String> getMessages();
 
+    /**
+     * Returns up to {@code count} of the most recent messages, oldest first.
+     */
+    public List<String> getRecentMessages(int count);
+
     public void addMessage(String message) throws IOException, InterruptedException;
 
     public void broadcastMessage(String message);
+
+    /**
+     * Sends a chat message to every member and keeps it in the history.
+     */
+    default void publish(String message) throws IOException, InterruptedException {
+        broadcastMessage(message);
+        addMessage(message);
+    }
+
+    /**
+     * Tells every member about an event, such as someone joining; it is not kept in the history.
+     */
+    default void announce(String message) {
+        broadcastMessage(message);
+    }
 }
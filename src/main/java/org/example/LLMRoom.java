@@ -1,59 +1,194 @@
 package org.example;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class LLMRoom implements IRoom {
+    private static final boolean STREAM_REPLIES = Boolean.parseBoolean(System.getProperty("chat.llm.stream", "true"));
+    private static final int FRAME_CHARS = Integer.getInteger("chat.llm.frameChars", 80);
+    private static final long FRAME_MILLIS = Long.getLong("chat.llm.frameMillis", 250);
+    private static final int MAX_PENDING_PROMPTS = Integer.getInteger("chat.llm.maxPendingPrompts", 32);
+
     private final String llmName;
-    private final List<ClientHandler> clients = new ArrayList<>();
-    private final List<String> messages = new ArrayList<>();
+    private final int roomId = Server.nextRoomId();
+    private final RoomMembers clients = new RoomMembers();
+    private final Lock broadcastLock = new ReentrantLock();
+    private final MessageHistory messages = MessageHistory.createDefault();
     private LLMService llmService;
 
+    // Prompt pipeline: at most one request in flight, the rest wait in order
+    private final Lock pipelineLock = new ReentrantLock();
+    private final Deque<String> pendingPrompts = new ArrayDeque<>();
+    private boolean inFlight;
+
+    private volatile long lastActivityMillis = System.currentTimeMillis();
+
     public LLMRoom(String llmName) throws IOException, InterruptedException {
-        this.llmName = llmName;
-        initializeLLM();
+        this(llmName, "http://localhost:11434");
     }
 
-    private void initializeLLM() throws IOException, InterruptedException {
-        String host = "http://localhost:11434";
+    public LLMRoom(String llmName, String host) throws IOException, InterruptedException {
+        this.llmName = llmName;
         this.llmService = new LLMService(host, llmName);
     }
 
-    public synchronized String getRoomName() {
+    public String getRoomName() {
         return llmName;
     }
 
-    public synchronized void addClient(ClientHandler client) {
+    public int getRoomId() {
+        return roomId;
+    }
+
+    public void addClient(ClientHandler client) {
         clients.add(client);
+        lastActivityMillis = System.currentTimeMillis();
     }
 
-    public synchronized void removeClient(ClientHandler client) {
+    public void removeClient(ClientHandler client) {
         clients.remove(client);
+        lastActivityMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * True if nobody is in the room, no prompt is pending and nothing happened for {@code idleMillis}.
+     */
+    public boolean isIdle(long now, long idleMillis) {
+        return clients.size() == 0 && getQueueDepth() == 0 && getInFlightCount() == 0
+                && now - lastActivityMillis > idleMillis;
+    }
+
+    public List<ClientHandler> getClients() {
+        return clients.snapshot();
+    }
+
+    public List<String> getMessages() {
+        return messages.all();
+    }
+
+    public List<String> getRecentMessages(int count) {
+        return messages.last(count);
     }
 
-    public synchronized List<ClientHandler> getClients() {
-        return new ArrayList<>(clients);
+    /**
+     * Queues the message as a prompt and returns immediately. Prompts are sent one at a time,
+     * in order; replies are broadcast from the HTTP client's completion callbacks. A prompt
+     * turned away because too many are waiting is not kept in the room's history.
+     */
+    public void addMessage(String message) {
+        lastActivityMillis = System.currentTimeMillis();
+
+        boolean send;
+        pipelineLock.lock();
+        try {
+            if (pendingPrompts.size() >= MAX_PENDING_PROMPTS) {
+                ServerMetrics.recordLlmPromptRejected();
+                broadcastMessage("Error: " + llmName + " is busy, message was not sent to the model.");
+                return;
+            }
+            // Under the lock, so the history has the prompts in the order they are sent
+            messages.append(message);
+            pendingPrompts.addLast(message);
+            send = !inFlight;
+            inFlight = true;
+        } finally {
+            pipelineLock.unlock();
+        }
+        if (send) {
+            sendNextPrompt();
+        }
     }
 
-    public synchronized List<String> getMessages() {
-        return new ArrayList<>(messages);
+    public int getQueueDepth() {
+        pipelineLock.lock();
+        try {
+            return pendingPrompts.size();
+        } finally {
+            pipelineLock.unlock();
+        }
     }
 
-    public synchronized void addMessage(String message) {
-        messages.add(message);
+    public int getInFlightCount() {
+        pipelineLock.lock();
         try {
-            String response = llmService.sendMessage(message);
-            System.out.println("LLM Response: " + response);
-            broadcastMessage("Bot" + ": " + response);
-        } catch (Exception e) {
-            broadcastMessage("Error: " + e.getMessage());
+            return inFlight ? 1 : 0;
+        } finally {
+            pipelineLock.unlock();
         }
     }
 
-    public synchronized void broadcastMessage(String message) {
-        for (ClientHandler client : clients) {
-            client.sendMessage(message);
+    private void sendNextPrompt() {
+        String prompt;
+        pipelineLock.lock();
+        try {
+            prompt = pendingPrompts.pollFirst();
+            if (prompt == null) {
+                inFlight = false;
+                return;
+            }
+        } finally {
+            pipelineLock.unlock();
+        }
+
+        TokenCoalescer frames = new TokenCoalescer(frame -> broadcastMessage("Bot" + ": " + frame),
+                FRAME_CHARS, FRAME_MILLIS);
+        CompletableFuture<String> reply;
+        try {
+            reply = STREAM_REPLIES
+                    ? llmService.streamMessageAsync(prompt, frames::accept)
+                    : llmService.streamMessageAsync(prompt, token -> {});
+        } catch (RuntimeException e) {
+            reply = CompletableFuture.failedFuture(e);
+        }
+
+        reply.whenComplete((response, error) -> {
+            // Whatever happens here, the next prompt must go out or the pipeline stalls for good
+            try {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    ServerMetrics.recordLlmFailure();
+                    broadcastMessage("Error: " + cause.getMessage());
+                } else {
+                    if (STREAM_REPLIES) {
+                        frames.finish();
+                    } else {
+                        broadcastMessage("Bot" + ": " + response);
+                    }
+                    ServerMetrics.recordLlmReply(llmService.getLastTimeToFirstTokenMillis(), llmService.getLastTotalLatencyMillis());
+                    Log.debug("LLM response in {}: {}", llmName, response);
+                    Log.info("LLM latency for {}: first token {} ms, total {} ms", llmName,
+                            llmService.getLastTimeToFirstTokenMillis(), llmService.getLastTotalLatencyMillis());
+                    messages.append("Bot" + ": " + response);
+                }
+            } catch (RuntimeException e) {
+                Log.error("Error delivering LLM reply in {}: {}", llmName, e.getMessage());
+            } finally {
+                lastActivityMillis = System.currentTimeMillis();
+                sendNextPrompt();
+            }
+        });
+    }
+
+    public void broadcastMessage(String message) {
+        // Only orders concurrent broadcasts so every member sees the same sequence;
+        // sendMessage just enqueues and membership changes never wait on this lock
+        OutboundMessage outbound = OutboundMessage.roomMessage(roomId, (byte) 0, message);
+        broadcastLock.lock();
+        try {
+            long start = System.nanoTime();
+            List<ClientHandler> members = clients.snapshot();
+            for (ClientHandler client : members) {
+                client.sendMessage(outbound);
+            }
+            ServerMetrics.recordFanOut(members.size(), System.nanoTime() - start);
+        } finally {
+            broadcastLock.unlock();
         }
     }
 }
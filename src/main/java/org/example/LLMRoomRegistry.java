@@ -0,0 +1,143 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Named LLM rooms shared by all clients. A room (and its {@link LLMService}) is created the
+ * first time someone joins its model, and dropped again once nobody has used it for a while.
+ */
+public class LLMRoomRegistry {
+    private static final long IDLE_TIMEOUT_MILLIS = Long.getLong("chat.llm.roomIdleSeconds", 600) * 1000;
+    private static final long EVICTION_INTERVAL_MILLIS = 30000;
+
+    private final String host;
+    // Futures so that concurrent joins of a new model wait for one model probe instead of racing
+    private final Map<String, CompletableFuture<LLMRoom>> rooms = new ConcurrentHashMap<>();
+
+    public LLMRoomRegistry(String host) {
+        this.host = host;
+    }
+
+    /**
+     * Adds the client to the room of the given model, creating the room if needed.
+     */
+    public LLMRoom join(String llmName, ClientHandler client) throws IOException, InterruptedException {
+        while (true) {
+            CompletableFuture<LLMRoom> entry = rooms.get(llmName);
+            LLMRoom room = entry != null ? await(entry) : null;
+            if (room == null) {
+                room = create(llmName);
+            }
+
+            room.addClient(client);
+            // The evictor may have dropped the room between lookup and join; retry with a fresh one
+            CompletableFuture<LLMRoom> current = rooms.get(llmName);
+            if (current != null && current.getNow(null) == room) {
+                return room;
+            }
+            room.removeClient(client);
+        }
+    }
+
+    public List<String> getActiveRooms() {
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, CompletableFuture<LLMRoom>> entry : rooms.entrySet()) {
+            if (entry.getValue().getNow(null) != null) {
+                names.add(entry.getKey());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * The rooms that are ready, for metrics.
+     */
+    public List<LLMRoom> getRooms() {
+        List<LLMRoom> ready = new ArrayList<>();
+        for (CompletableFuture<LLMRoom> entry : rooms.values()) {
+            LLMRoom room = entry.getNow(null);
+            if (room != null) {
+                ready.add(room);
+            }
+        }
+        return ready;
+    }
+
+    public int size() {
+        return rooms.size();
+    }
+
+    /**
+     * Starts the background thread that evicts idle rooms.
+     */
+    public void startEvictor() {
+        Thread.startVirtualThread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(EVICTION_INTERVAL_MILLIS);
+                    evictIdleRooms(System.currentTimeMillis());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        });
+    }
+
+    void evictIdleRooms(long now) {
+        for (Map.Entry<String, CompletableFuture<LLMRoom>> entry : rooms.entrySet()) {
+            LLMRoom room = entry.getValue().getNow(null);
+            if (room == null || !room.isIdle(now, IDLE_TIMEOUT_MILLIS)) {
+                continue;
+            }
+            if (rooms.remove(entry.getKey(), entry.getValue())) {
+                if (!room.getClients().isEmpty()) {
+                    // Someone joined while we were removing it
+                    rooms.putIfAbsent(entry.getKey(), entry.getValue());
+                } else {
+                    Log.info("Evicted idle LLM room {}", entry.getKey());
+                }
+            }
+        }
+    }
+
+    private LLMRoom create(String llmName) throws IOException, InterruptedException {
+        CompletableFuture<LLMRoom> created = new CompletableFuture<>();
+        CompletableFuture<LLMRoom> existing = rooms.putIfAbsent(llmName, created);
+        if (existing != null) {
+            return await(existing);
+        }
+
+        try {
+            LLMRoom room = new LLMRoom(llmName, host);
+            created.complete(room);
+            return room;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            // Do not cache failures: the model may be pulled later
+            rooms.remove(llmName, created);
+            created.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static LLMRoom await(CompletableFuture<LLMRoom> entry) throws IOException, InterruptedException {
+        try {
+            return entry.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            if (cause instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+}
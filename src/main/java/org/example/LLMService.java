@@ -5,19 +5,37 @@ import org.json.JSONObject;
 
 import java.net.URI;
 import java.net.http.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
 import java.io.IOException;
 
 public class LLMService {
+    // One client for every model: it pools connections (HTTP/2 where the server supports it)
+    private static final HttpClient SHARED_HTTP_CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
     private final HttpClient httpClient;
     private final String host;
     private final String modelName;
-    private final List<Map<String, String>> chatHistory = new ArrayList<>();
+    private final ChatHistory chatHistory = ChatHistory.createDefault();
+    private final String requestPrefix;
+    private CompletableFuture<Void> summarizing = CompletableFuture.completedFuture(null);
+    private volatile long lastTimeToFirstTokenMillis = -1;
+    private volatile long lastTotalLatencyMillis = -1;
 
     public LLMService(String host, String modelName) throws IOException, InterruptedException {
-        this.httpClient = HttpClient.newHttpClient();
+        this.httpClient = SHARED_HTTP_CLIENT;
         this.host = host.endsWith("/") ? host.substring(0, host.length() - 1) : host;
         this.modelName = modelName;
+        this.requestPrefix = "{\"model\":" + JSONObject.quote(modelName) + ",\"stream\":true,";
 
         if (!isModelAvailable()) {
             throw new IllegalStateException("Model " + modelName + " is not installed.");
@@ -25,38 +43,144 @@ public class LLMService {
     }
 
     private boolean isModelAvailable() throws IOException, InterruptedException {
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(host + "/api/tags"))
-                .GET()
-                .build();
+        return getCatalog(host).isInstalled(modelName);
+    }
 
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-        JSONObject json = new JSONObject(response.body());
-        JSONArray models = json.getJSONArray("models");
+    public String sendMessage(String message) throws IOException, InterruptedException {
+        return streamMessage(message, token -> {});
+    }
 
-        for (int i = 0; i < models.length(); i++) {
-            JSONObject model = models.getJSONObject(i);
-            String name = model.getString("name");
-            if (name.replace(":latest", "").equals(modelName)) {
-                return true;
+    /**
+     * Sends a message and hands every content chunk of the streamed reply to {@code onToken}
+     * as soon as Ollama produces it. Returns the complete reply.
+     */
+    public String streamMessage(String message, Consumer<String> onToken) throws IOException, InterruptedException {
+        try {
+            return streamMessageAsync(message, onToken).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
             }
+            throw new IOException(cause.getMessage(), cause);
         }
-        return false;
     }
 
-    public String sendMessage(String message) throws IOException, InterruptedException {
-        chatHistory.add(Map.of("role", "user", "content", message));
+    /**
+     * Non-blocking variant of {@link #streamMessage}: chunks are delivered on the HTTP client's
+     * threads and the returned future completes with the whole reply. Calls must not overlap,
+     * since each one extends the shared chat history. The prompt and its reply are added to the
+     * history together once the reply is complete, so a failed request leaves no trace in it.
+     */
+    public CompletableFuture<String> streamMessageAsync(String message, Consumer<String> onToken) {
+        HttpRequest request = buildChatRequest(message);
+
+        long start = System.nanoTime();
+        ChatStreamSubscriber subscriber = new ChatStreamSubscriber(onToken);
+        HttpResponse.BodyHandler<String> handler = responseInfo -> {
+            subscriber.statusCode = responseInfo.statusCode();
+            return HttpResponse.BodySubscribers.fromLineSubscriber(subscriber, ChatStreamSubscriber::reply,
+                    StandardCharsets.UTF_8, null);
+        };
+
+        return httpClient.sendAsync(request, handler).thenApply(response -> {
+            if (response.statusCode() != 200) {
+                if (response.statusCode() == 404) {
+                    // The model was most likely removed; do not keep advertising it
+                    getCatalog(host).invalidate();
+                }
+                throw new CompletionException(new IOException("Ollama returned HTTP " + response.statusCode()
+                        + ": " + subscriber.errorBody));
+            }
+            if (subscriber.parseError != null) {
+                throw new CompletionException(new IOException("Malformed reply from Ollama: "
+                        + subscriber.parseError.getMessage(), subscriber.parseError));
+            }
+
+            long end = System.nanoTime();
+            lastTimeToFirstTokenMillis = subscriber.firstTokenNanos == 0 ? -1 : (subscriber.firstTokenNanos - start) / 1_000_000;
+            lastTotalLatencyMillis = (end - start) / 1_000_000;
+
+            String reply = response.body();
+            chatHistory.add("user", message);
+            chatHistory.add("assistant", reply);
+            if (chatHistory.isKeepingEvicted()) {
+                summarizeEvictedTurns();
+            }
+            return reply;
+        });
+    }
+
+    /**
+     * Milliseconds from sending the last request until its first content chunk arrived, or -1.
+     */
+    public long getLastTimeToFirstTokenMillis() {
+        return lastTimeToFirstTokenMillis;
+    }
+
+    public long getLastTotalLatencyMillis() {
+        return lastTotalLatencyMillis;
+    }
+
+    private HttpRequest buildChatRequest(String prompt) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(host + "/api/chat"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(buildChatBody(requestPrefix, chatHistory, prompt)))
+                .build();
+    }
+
+    /**
+     * The /api/chat body: {@code requestPrefix} (model and options, ending in a comma) followed
+     * by the conversation's messages and the new prompt.
+     */
+    static String buildChatBody(String requestPrefix, ChatHistory history, String prompt) {
+        StringBuilder requestBody = new StringBuilder(requestPrefix.length() + history.getWindowChars()
+                + prompt.length() + 256);
+        requestBody.append(requestPrefix);
+        history.appendMessages(requestBody, prompt);
+        requestBody.append('}');
+        return requestBody.toString();
+    }
+
+    /**
+     * Folds the turns that slid out of the context window into the running summary, using the
+     * model itself. Summaries are chained so a slow one is never overwritten by an older one.
+     */
+    private void summarizeEvictedTurns() {
+        List<String> evicted = chatHistory.takeEvicted();
+        if (evicted.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            summarizing = summarizing.thenCompose(ignored -> requestSummary(chatHistory.getSummary(), evicted))
+                    .handle((summary, error) -> {
+                        if (error != null) {
+                            Log.warn("Could not summarize chat history of {}: {}", modelName, error.getMessage());
+                        } else {
+                            chatHistory.setSummary(summary);
+                        }
+                        return null;
+                    });
+        }
+    }
+
+    private CompletableFuture<String> requestSummary(String previousSummary, List<String> turns) {
+        StringBuilder transcript = new StringBuilder();
+        if (previousSummary != null) {
+            transcript.append("Summary so far: ").append(previousSummary).append('\n');
+        }
+        for (String turn : turns) {
+            transcript.append(turn).append('\n');
+        }
 
         JSONObject requestBody = new JSONObject();
         requestBody.put("model", modelName);
-
+        requestBody.put("stream", false);
         JSONArray messages = new JSONArray();
-        for (Map<String, String> entry : chatHistory) {
-            JSONObject messageObj = new JSONObject();
-            messageObj.put("role", entry.get("role"));
-            messageObj.put("content", entry.get("content"));
-            messages.put(messageObj);
-        }
+        messages.put(new JSONObject().put("role", "system")
+                .put("content", "Summarize the following conversation in a few sentences. Keep names and facts."));
+        messages.put(new JSONObject().put("role", "user").put("content", transcript.toString()));
         requestBody.put("messages", messages);
 
         HttpRequest request = HttpRequest.newBuilder()
@@ -65,49 +189,87 @@ public class LLMService {
                 .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString()))
                 .build();
 
-        StringBuilder fullResponse = new StringBuilder();
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()).thenApply(response -> {
+            if (response.statusCode() != 200) {
+                throw new CompletionException(new IOException("Ollama returned HTTP " + response.statusCode()));
+            }
+            return new JSONObject(response.body()).getJSONObject("message").getString("content");
+        });
+    }
 
-        String[] lines = response.body().split("\n");
-        for (String line : lines) {
-            if (line.trim().isEmpty()) continue;
+    /**
+     * Parses Ollama's NDJSON chat stream one line at a time.
+     */
+    private static class ChatStreamSubscriber implements Flow.Subscriber<String> {
+        private final Consumer<String> onToken;
+        private final StringBuilder fullResponse = new StringBuilder();
+        private final StringBuilder errorBody = new StringBuilder();
+        private volatile int statusCode;
+        private volatile long firstTokenNanos;
+        private boolean done;
+        private RuntimeException parseError;
 
-            JSONObject jsonResponse = new JSONObject(line);
-            JSONObject messageObj = jsonResponse.getJSONObject("message");
-            String content = messageObj.getString("content");
-            fullResponse.append(content);
+        ChatStreamSubscriber(Consumer<String> onToken) {
+            this.onToken = onToken;
+        }
 
-            if (jsonResponse.getBoolean("done")) {
-                break;
-            }
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
         }
 
-        String reply = fullResponse.toString();
-        chatHistory.add(Map.of("role", "assistant", "content", reply));
-        return reply;
-    }
+        @Override
+        public void onNext(String line) {
+            if (statusCode != 200) {
+                errorBody.append(line);
+                return;
+            }
+            if (done || parseError != null || line.trim().isEmpty()) {
+                return;
+            }
 
-    public static List<String> listAvailableModels(String host) throws IOException, InterruptedException {
-        HttpClient client = HttpClient.newHttpClient();
-        if (host.endsWith("/")) {
-            host = host.substring(0, host.length() - 1);
+            try {
+                JSONObject jsonResponse = new JSONObject(line);
+                JSONObject messageObj = jsonResponse.getJSONObject("message");
+                String content = messageObj.getString("content");
+                if (!content.isEmpty()) {
+                    if (firstTokenNanos == 0) {
+                        firstTokenNanos = System.nanoTime();
+                    }
+                    fullResponse.append(content);
+                    onToken.accept(content);
+                }
+                done = jsonResponse.getBoolean("done");
+            } catch (RuntimeException e) {
+                // Subscribers must not throw; the failure is reported when the response completes
+                parseError = e;
+            }
         }
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(host + "/api/tags"))
-                .GET()
-                .build();
+        @Override
+        public void onError(Throwable throwable) {
+        }
 
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-        JSONObject json = new JSONObject(response.body());
-        JSONArray models = json.getJSONArray("models");
+        @Override
+        public void onComplete() {
+        }
 
-        List<String> modelNames = new ArrayList<>();
-        for (int i = 0; i < models.length(); i++) {
-            JSONObject model = models.getJSONObject(i);
-            modelNames.add(model.getString("name"));
+        String reply() {
+            return fullResponse.toString();
         }
+    }
+
+    public static List<String> listAvailableModels(String host) throws IOException, InterruptedException {
+        return getCatalog(host).getModels();
+    }
 
-        return modelNames;
+    /**
+     * The cached model list of a host, shared by every service and by LLM LIST.
+     */
+    public static ModelCatalog getCatalog(String host) {
+        if (host.endsWith("/")) {
+            host = host.substring(0, host.length() - 1);
+        }
+        return ModelCatalog.forHost(SHARED_HTTP_CLIENT, host);
     }
 }
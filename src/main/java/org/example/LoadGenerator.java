@@ -0,0 +1,564 @@
+package org.example;
+
+import org.mindrot.jbcrypt.BCrypt;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Headless load generator: opens many chat sessions at once, each on its own virtual thread,
+ * logs them in, puts them in rooms and has them send at a fixed total rate. Connections use the
+ * client's TLS setup and reconnect with their token the way {@link Client} does.
+ *
+ * <p>Every message carries the time it was due to be sent, so each member that receives it can
+ * record the end-to-end delivery latency. Lateness of the senders themselves is included, so a
+ * stalled server cannot hide behind senders that fell behind.
+ *
+ * <p>Usage: {@code java org.example.LoadGenerator <host:port>[,<host:port>...]} spreads the
+ * sessions over the given servers; {@code java org.example.LoadGenerator seed <users file> <count>}
+ * adds accounts load0..load<count-1> to a server's users file (before it starts) with a cheap
+ * hash, so a test is not limited by bcrypt. Options are system properties:
+ * <ul>
+ *     <li>{@code chat.load.clients} (1000), {@code chat.load.connectConcurrency} (64) logins in flight</li>
+ *     <li>{@code chat.load.rooms} (10), {@code chat.load.distribution} {@code zipf} (default) or
+ *     {@code uniform}, {@code chat.load.zipfExponent} (1.0)</li>
+ *     <li>{@code chat.load.rate} (500) messages per second over all sessions,
+ *     {@code chat.load.messageBytes} (100)</li>
+ *     <li>{@code chat.load.warmupSeconds} (5), {@code chat.load.durationSeconds} (30)</li>
+ *     <li>{@code chat.load.binary} (false) to use binary frames</li>
+ *     <li>{@code chat.load.llmClients} (0) sessions that join {@code chat.load.llmModel} (fake) instead
+ *     and send {@code chat.load.llmRate} (1) prompts per second between them; see {@link FakeOllama}</li>
+ *     <li>{@code chat.load.userPrefix} (load), {@code chat.load.password} (load-password)</li>
+ * </ul>
+ * Servers limit logins per address; raise {@code chat.auth.burst} and {@code chat.auth.ratePerSecond}
+ * on them, or throttled logins are retried and show up as slow logins.
+ */
+public class LoadGenerator {
+    private static final int CLIENTS = Integer.getInteger("chat.load.clients", 1000);
+    private static final int CONNECT_CONCURRENCY = Integer.getInteger("chat.load.connectConcurrency", 64);
+    private static final int ROOMS = Integer.getInteger("chat.load.rooms", 10);
+    private static final boolean ZIPF = !System.getProperty("chat.load.distribution", "zipf").equals("uniform");
+    private static final double ZIPF_EXPONENT = Double.parseDouble(System.getProperty("chat.load.zipfExponent", "1.0"));
+    private static final double RATE = Double.parseDouble(System.getProperty("chat.load.rate", "500"));
+    private static final int MESSAGE_BYTES = Integer.getInteger("chat.load.messageBytes", 100);
+    private static final long WARMUP_SECONDS = Long.getLong("chat.load.warmupSeconds", 5);
+    private static final long DURATION_SECONDS = Long.getLong("chat.load.durationSeconds", 30);
+    private static final boolean BINARY = Boolean.getBoolean("chat.load.binary");
+    private static final int LLM_CLIENTS = Integer.getInteger("chat.load.llmClients", 0);
+    private static final String LLM_MODEL = System.getProperty("chat.load.llmModel", "fake");
+    private static final double LLM_RATE = Double.parseDouble(System.getProperty("chat.load.llmRate", "1"));
+    private static final String USER_PREFIX = System.getProperty("chat.load.userPrefix", "load");
+    private static final String PASSWORD = System.getProperty("chat.load.password", "load-password");
+
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+    private static final int SETUP_TIMEOUT_MILLIS = 60_000;
+    private static final long CONNECT_WAIT_SECONDS = 600;
+    private static final long REPORT_MILLIS = 5000;
+    private static final char MARK = '~';
+
+    private final SSLSocketFactory socketFactory;
+    private final Semaphore connectPermits = new Semaphore(CONNECT_CONCURRENCY);
+    private final CountDownLatch setUp = new CountDownLatch(CLIENTS);
+    private volatile boolean sending;
+    private volatile boolean stopping;
+    // Messages due in [measureFromNanos, measureUntilNanos) are measured
+    private volatile long measureFromNanos = Long.MAX_VALUE;
+    private volatile long measureUntilNanos = Long.MAX_VALUE;
+
+    private final LatencyHistogram loginLatency = new LatencyHistogram();
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    private final LatencyHistogram llmLatency = new LatencyHistogram();
+    private final LongAdder joined = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder sentMeasured = new LongAdder();
+    private final LongAdder deliveredMeasured = new LongAdder();
+
+    private LoadGenerator(SSLSocketFactory socketFactory) {
+        this.socketFactory = socketFactory;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 3 && args[0].equals("seed")) {
+            seedUsers(args[1], Integer.parseInt(args[2]));
+            return;
+        }
+        if (args.length != 1) {
+            System.out.println("Usage: java org.example.LoadGenerator <host:port>[,<host:port>...]");
+            System.out.println("       java org.example.LoadGenerator seed <users file> <count>");
+            return;
+        }
+
+        List<String> servers = List.of(args[0].split(","));
+        new LoadGenerator(TlsContexts.createClientContext().getSocketFactory()).run(servers);
+        System.exit(0);
+    }
+
+    /**
+     * Appends accounts for the generator's users. All of them share one hash at the lowest
+     * bcrypt cost: checking it still goes through bcrypt, just a cheap one.
+     */
+    private static void seedUsers(String usersFile, int count) throws IOException {
+        String hash = BCrypt.hashpw(PASSWORD, BCrypt.gensalt(4));
+        Path path = Paths.get(usersFile);
+        // Like the credential store, do not glue the first account onto an unterminated last line
+        boolean unterminated = false;
+        if (Files.exists(path) && Files.size(path) > 0) {
+            try (SeekableByteChannel file = Files.newByteChannel(path)) {
+                ByteBuffer last = ByteBuffer.allocate(1);
+                file.position(file.size() - 1).read(last);
+                unterminated = last.get(0) != '\n';
+            }
+        }
+        try (BufferedWriter out = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            if (unterminated) {
+                out.write("\n");
+            }
+            for (int i = 0; i < count; i++) {
+                out.write(USER_PREFIX + i + ":" + hash + "\n");
+            }
+        }
+        System.out.println("Added " + count + " users to " + usersFile);
+    }
+
+    private void run(List<String> servers) throws InterruptedException {
+        List<String> rooms = new ArrayList<>();
+        for (int i = 0; i < ROOMS; i++) {
+            rooms.add("load-room-" + i);
+        }
+        double[] cumulative = roomWeights();
+        Random random = new Random(42);
+        int chatClients = CLIENTS - LLM_CLIENTS;
+
+        System.out.printf("Load: %d sessions on %s, %d rooms (%s), %.0f msg/s, %s protocol%s%n", CLIENTS, servers, ROOMS,
+                ZIPF ? "zipf " + ZIPF_EXPONENT : "uniform", RATE, BINARY ? "binary" : "text",
+                LLM_CLIENTS > 0 ? ", " + LLM_CLIENTS + " in " + LLM_MODEL + " at " + LLM_RATE + " prompts/s" : "");
+
+        List<Session> sessions = new ArrayList<>();
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < CLIENTS; i++) {
+            String server = servers.get(i % servers.size());
+            int colon = server.lastIndexOf(':');
+            boolean llm = i < LLM_CLIENTS;
+            String room = llm ? LLM_MODEL : rooms.get(pick(cumulative, random.nextDouble()));
+            long intervalNanos = (long) (1e9 * (llm ? LLM_CLIENTS / LLM_RATE : chatClients / RATE));
+            Session session = new Session(USER_PREFIX + i, server.substring(0, colon),
+                    Integer.parseInt(server.substring(colon + 1)), room, llm, intervalNanos);
+            sessions.add(session);
+            Thread.startVirtualThread(session::run);
+        }
+
+        if (!setUp.await(CONNECT_WAIT_SECONDS, TimeUnit.SECONDS)) {
+            System.out.println("Not every session was set up within " + CONNECT_WAIT_SECONDS + " s");
+        }
+        double connectSeconds = (System.nanoTime() - connectStart) / 1e9;
+        System.out.printf("Logged in and joined %d of %d sessions in %.1f s (%.0f logins/s); %d failed, %d logins throttled%n",
+                joined.sum(), CLIENTS, connectSeconds, joined.sum() / connectSeconds, failed.sum(), throttled.sum());
+        System.out.println("Login latency: " + loginLatency.summary());
+
+        long start = System.nanoTime();
+        sending = true;
+        for (Session session : sessions) {
+            Thread.startVirtualThread(() -> session.sendLoop(start));
+        }
+
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        long measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+        measureFromNanos = measureFrom;
+        measureUntilNanos = measureUntil;
+        long lastSent = 0;
+        long lastDelivered = 0;
+        while (System.nanoTime() < measureUntil) {
+            Thread.sleep(REPORT_MILLIS);
+            long sentNow = sent.sum();
+            long deliveredNow = delivered.sum();
+            System.out.printf("%3.0f s: sent %.0f/s, delivered %.0f/s, %d reconnects%n",
+                    (System.nanoTime() - start) / 1e9, (sentNow - lastSent) * 1000.0 / REPORT_MILLIS,
+                    (deliveredNow - lastDelivered) * 1000.0 / REPORT_MILLIS, reconnects.sum());
+            lastSent = sentNow;
+            lastDelivered = deliveredNow;
+        }
+        sending = false;
+        // Let what is still in flight arrive
+        Thread.sleep(2000);
+
+        System.out.printf("Measured %d s: sent %d (%.0f/s), delivered %d (%.0f/s), %d reconnects%n", DURATION_SECONDS,
+                sentMeasured.sum(), sentMeasured.sum() / (double) DURATION_SECONDS,
+                deliveredMeasured.sum(), deliveredMeasured.sum() / (double) DURATION_SECONDS, reconnects.sum());
+        System.out.println("Delivery latency: " + deliveryLatency.summary());
+        if (LLM_CLIENTS > 0) {
+            System.out.println("LLM first reply: " + llmLatency.summary());
+        }
+
+        stopping = true;
+        for (Session session : sessions) {
+            session.quit();
+        }
+    }
+
+    private static double[] roomWeights() {
+        double[] cumulative = new double[ROOMS];
+        double sum = 0;
+        for (int i = 0; i < ROOMS; i++) {
+            sum += ZIPF ? 1 / Math.pow(i + 1, ZIPF_EXPONENT) : 1;
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < ROOMS; i++) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int pick(double[] cumulative, double value) {
+        for (int i = 0; i < cumulative.length; i++) {
+            if (value < cumulative[i]) {
+                return i;
+            }
+        }
+        return cumulative.length - 1;
+    }
+
+    private static String filler() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < MESSAGE_BYTES) {
+            text.append("lorem ipsum ");
+        }
+        return text.substring(0, MESSAGE_BYTES);
+    }
+
+    /**
+     * Due time carried by a message, or -1 if it has none.
+     */
+    private static long markOf(String text) {
+        int start = text.indexOf(MARK);
+        int end = start < 0 ? -1 : text.indexOf(MARK, start + 1);
+        if (end < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(text, start + 1, end, 10);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private record Incoming(byte opcode, int roomId, String text) {
+    }
+
+    private class Session {
+        private final String username;
+        private final String host;
+        private final int port;
+        private final String room;
+        private final boolean llm;
+        private final long intervalNanos;
+        private final String filler = filler();
+        private final Lock writeLock = new ReentrantLock();
+
+        private SSLSocket socket;
+        private InputStream in;
+        private BufferedReader reader;
+        private DataInputStream frames;
+        private OutputStream out;
+        private String token;
+        private volatile int roomId;
+        private volatile boolean connected;
+
+        Session(String username, String host, int port, String room, boolean llm, long intervalNanos) {
+            this.username = username;
+            this.host = host;
+            this.port = port;
+            this.room = room;
+            this.llm = llm;
+            this.intervalNanos = intervalNanos;
+        }
+
+        void run() {
+            try {
+                connectPermits.acquire();
+                try {
+                    long start = System.nanoTime();
+                    open();
+                    logIn();
+                    join();
+                    loginLatency.recordNanos(System.nanoTime() - start);
+                    joined.increment();
+                } finally {
+                    connectPermits.release();
+                    setUp.countDown();
+                }
+            } catch (IOException | InterruptedException e) {
+                failed.increment();
+                System.out.println(username + " could not start: " + e.getMessage());
+                close();
+                return;
+            }
+
+            while (!stopping) {
+                try {
+                    readLoop();
+                } catch (IOException e) {
+                    // Handled below like the end of the stream
+                }
+                connected = false;
+                if (stopping || !reconnect()) {
+                    return;
+                }
+            }
+        }
+
+        private void open() throws IOException {
+            socket = TlsContexts.connect(socketFactory, host, port);
+            socket.setSoTimeout(SETUP_TIMEOUT_MILLIS);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+            if (BINARY) {
+                out.write((WireProtocol.NEGOTIATE + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                // Lines sent before the switch, such as the login prompt
+                String line;
+                while ((line = WireProtocol.readLine(in, MAX_LINE_BYTES)) != null && !line.equals(WireProtocol.ACCEPTED)) {
+                    // skip
+                }
+                frames = new DataInputStream(in);
+            } else {
+                reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            }
+        }
+
+        /**
+         * Logs in, or registers if the account does not exist yet; attempts turned away because
+         * the server is busy or rate limiting are repeated after a pause.
+         */
+        private void logIn() throws IOException, InterruptedException {
+            String command = "LOGIN " + username + " " + PASSWORD;
+            send(command);
+            Incoming message;
+            while ((message = receive()) != null) {
+                if (message.opcode == WireProtocol.TOKEN) {
+                    token = message.text;
+                } else if (message.opcode == WireProtocol.WELCOME) {
+                    return;
+                } else if (message.text.startsWith("Invalid username or password") && command.startsWith("LOGIN")) {
+                    command = "REGISTER " + username + " " + PASSWORD;
+                    send(command);
+                } else if (message.text.startsWith("Too many login attempts") || message.text.startsWith("Server busy")) {
+                    throttled.increment();
+                    Thread.sleep(250 + (long) (Math.random() * 750));
+                    send(command);
+                } else if (message.text.startsWith("Maximum authentication attempts") || message.text.startsWith("Error")
+                        || message.text.startsWith("Username already") || message.text.startsWith("Invalid")) {
+                    throw new IOException(message.text);
+                }
+            }
+            throw new IOException("Connection closed during login");
+        }
+
+        private void join() throws IOException {
+            send(llm ? "LLM JOIN " + room : "JOIN " + room);
+            Incoming message;
+            while ((message = receive()) != null) {
+                if (message.opcode == WireProtocol.JOINED) {
+                    roomId = message.roomId;
+                    socket.setSoTimeout(0);
+                    connected = true;
+                    return;
+                }
+            }
+            throw new IOException("Connection closed before joining " + room);
+        }
+
+        private void readLoop() throws IOException {
+            Incoming message;
+            while ((message = receive()) != null) {
+                if (message.opcode == WireProtocol.TOKEN) {
+                    token = message.text;
+                    continue;
+                }
+                long due = markOf(message.text);
+                if (due < 0) {
+                    continue;
+                }
+                long latency = System.nanoTime() - due;
+                boolean measured = due >= measureFromNanos && due < measureUntilNanos;
+                if (message.text.startsWith("Bot: ")) {
+                    if (measured) {
+                        llmLatency.recordNanos(latency);
+                    }
+                    continue;
+                }
+                delivered.increment();
+                if (measured) {
+                    deliveryLatency.recordNanos(latency);
+                    deliveredMeasured.increment();
+                }
+            }
+        }
+
+        /**
+         * Reconnects with the session's token, backing off like {@link Client}, and joins its
+         * room again if the server did not keep it.
+         */
+        private boolean reconnect() {
+            long delay = Client.INITIAL_RECONNECT_DELAY;
+            for (int attempt = 0; attempt < Client.MAX_RECONNECT_ATTEMPTS && !stopping; attempt++) {
+                close();
+                try {
+                    Thread.sleep(delay);
+                    open();
+                    send("RECONNECT " + token);
+                    boolean kept = false;
+                    Incoming message;
+                    while ((message = receive()) != null && message.opcode != WireProtocol.WELCOME) {
+                        if (message.opcode == WireProtocol.RECONNECTED) {
+                            roomId = message.roomId;
+                            kept = true;
+                        } else if (message.text.startsWith("Invalid or expired token")) {
+                            throw new IOException(message.text);
+                        }
+                    }
+                    if (message == null) {
+                        throw new IOException("Connection closed during reconnect");
+                    }
+                    if (kept) {
+                        socket.setSoTimeout(0);
+                        connected = true;
+                    } else {
+                        join();
+                    }
+                    reconnects.increment();
+                    return true;
+                } catch (IOException e) {
+                    delay *= 2;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            System.out.println(username + " gave up reconnecting");
+            return false;
+        }
+
+        /**
+         * Sends at the session's share of the rate, each message stamped with the time it was due.
+         */
+        void sendLoop(long start) {
+            long due = start + (long) (Math.random() * intervalNanos);
+            while (sending) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (connected) {
+                    try {
+                        send("SEND " + MARK + due + MARK + " " + filler);
+                        sent.increment();
+                        if (due >= measureFromNanos && due < measureUntilNanos) {
+                            sentMeasured.increment();
+                        }
+                    } catch (IOException e) {
+                        // The reader notices the broken connection and reconnects
+                    }
+                }
+                due += intervalNanos;
+            }
+        }
+
+        private void send(String command) throws IOException {
+            writeLock.lock();
+            try {
+                if (BINARY) {
+                    out.write(WireProtocol.encodeCommand(command, roomId));
+                } else {
+                    out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Next message from the server, typed by opcode in both protocols; null at end of stream.
+         */
+        private Incoming receive() throws IOException {
+            if (BINARY) {
+                WireProtocol.Frame frame = WireProtocol.read(frames, WireProtocol.MAX_RESPONSE_PAYLOAD);
+                return frame == null ? null : new Incoming(frame.getOpcode(), frame.getRoomId(), frame.payload());
+            }
+            String line;
+            try {
+                line = reader.readLine();
+            } catch (SocketTimeoutException e) {
+                throw new IOException("No answer from the server within " + SETUP_TIMEOUT_MILLIS + " ms");
+            }
+            if (line == null) {
+                return null;
+            }
+            // The same classification as the interactive client's
+            if (line.startsWith("AUTH_TOKEN ")) {
+                return new Incoming(WireProtocol.TOKEN, 0, line.substring(11));
+            } else if (line.startsWith("Welcome ")) {
+                return new Incoming(WireProtocol.WELCOME, 0, line);
+            } else if (line.startsWith("Joined room: ") || line.startsWith("Joined chat with ")) {
+                return new Incoming(WireProtocol.JOINED, 0, line);
+            } else if (line.startsWith("Reconnected to room:")) {
+                return new Incoming(WireProtocol.RECONNECTED, 0, line);
+            }
+            return new Incoming(WireProtocol.TEXT, 0, line);
+        }
+
+        void quit() {
+            try {
+                if (connected) {
+                    send("QUIT");
+                }
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            close();
+        }
+
+        private void close() {
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package org.example;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The server's logger. A call only fills a slot of a lock-free ring buffer; a background
+ * thread formats the records and writes them, so client threads never wait for the console,
+ * a file or each other. If the buffer is full the record is dropped and counted rather than
+ * making the caller wait.
+ *
+ * <p>Messages use {@code {}} placeholders, filled in on the writer thread, so a call whose
+ * level is off costs a comparison and one that is on allocates nothing. A {@link Throwable}
+ * left over after the placeholders is printed with its stack trace.
+ *
+ * <p>Options: {@code chat.logging.level} ({@code ERROR}, {@code WARN}, {@code INFO} (default)
+ * or {@code DEBUG}); {@code chat.logging.debugSampling} to keep only one in n DEBUG records;
+ * {@code chat.logging.file} to write to a file instead of standard output, rotated at
+ * {@code chat.logging.maxFileBytes} (10 MiB) keeping {@code chat.logging.maxFiles} (5) old ones;
+ * {@code chat.logging.bufferSize} (8192) records in flight.
+ */
+public final class Log {
+    public enum Level { ERROR, WARN, INFO, DEBUG }
+
+    private static final int DEBUG_SAMPLING = Math.max(1, Integer.getInteger("chat.logging.debugSampling", 1));
+    private static final String FILE = System.getProperty("chat.logging.file", "");
+    private static final long MAX_FILE_BYTES = Long.getLong("chat.logging.maxFileBytes", 10 * 1024 * 1024);
+    private static final int MAX_FILES = Integer.getInteger("chat.logging.maxFiles", 5);
+    // A power of two, so a sequence number maps to its slot with a mask
+    private static final int BUFFER_SIZE = Integer.highestOneBit(Math.max(2, Integer.getInteger("chat.logging.bufferSize", 8192) - 1)) << 1;
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static volatile int level = Level.valueOf(System.getProperty("chat.logging.level", "INFO")).ordinal();
+
+    // Slot i is free for sequence n when sequences[i] == n, and holds record n once it is n + 1
+    private static final Record[] records = new Record[BUFFER_SIZE];
+    private static final AtomicLongArray sequences = new AtomicLongArray(BUFFER_SIZE);
+    private static final AtomicLong nextSequence = new AtomicLong();
+    private static final LongAdder dropped = new LongAdder();
+
+    // Whoever drains: the writer thread, or a flush at shutdown
+    private static final Lock drainLock = new ReentrantLock();
+    private static long drainSequence;
+    private static Writer file;
+    private static long fileBytes;
+    private static final StringBuilder line = new StringBuilder(256);
+    // Records come in bursts within the same millisecond; format its time once
+    private static long stampMillis = -1;
+    private static String stamp;
+    private static final Thread writer;
+    // Set while the writer has found the buffer empty and is about to park or parked
+    private static volatile boolean writerIdle;
+
+    static {
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            records[i] = new Record();
+            sequences.set(i, i);
+        }
+        writer = Thread.ofPlatform().name("log-writer").daemon(true).start(Log::drainLoop);
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush));
+    }
+
+    private Log() {
+    }
+
+    public static Level getLevel() {
+        return Level.values()[level];
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel.ordinal();
+    }
+
+    public static boolean isEnabled(Level query) {
+        return query.ordinal() <= level;
+    }
+
+    /**
+     * Records dropped so far because the buffer was full.
+     */
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    public static void error(String message) {
+        log(Level.ERROR, message, 0, null, null, null);
+    }
+
+    public static void error(String message, Object a) {
+        log(Level.ERROR, message, 1, a, null, null);
+    }
+
+    public static void error(String message, Object a, Object b) {
+        log(Level.ERROR, message, 2, a, b, null);
+    }
+
+    public static void error(String message, Object a, Object b, Object c) {
+        log(Level.ERROR, message, 3, a, b, c);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, 0, null, null, null);
+    }
+
+    public static void warn(String message, Object a) {
+        log(Level.WARN, message, 1, a, null, null);
+    }
+
+    public static void warn(String message, Object a, Object b) {
+        log(Level.WARN, message, 2, a, b, null);
+    }
+
+    public static void warn(String message, Object a, Object b, Object c) {
+        log(Level.WARN, message, 3, a, b, c);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, 0, null, null, null);
+    }
+
+    public static void info(String message, Object a) {
+        log(Level.INFO, message, 1, a, null, null);
+    }
+
+    public static void info(String message, Object a, Object b) {
+        log(Level.INFO, message, 2, a, b, null);
+    }
+
+    public static void info(String message, Object a, Object b, Object c) {
+        log(Level.INFO, message, 3, a, b, c);
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, 0, null, null, null);
+    }
+
+    public static void debug(String message, Object a) {
+        log(Level.DEBUG, message, 1, a, null, null);
+    }
+
+    public static void debug(String message, Object a, Object b) {
+        log(Level.DEBUG, message, 2, a, b, null);
+    }
+
+    public static void debug(String message, Object a, Object b, Object c) {
+        log(Level.DEBUG, message, 3, a, b, c);
+    }
+
+    private static void log(Level recordLevel, String message, int count, Object a, Object b, Object c) {
+        if (recordLevel.ordinal() > level) {
+            return;
+        }
+        if (recordLevel == Level.DEBUG && DEBUG_SAMPLING > 1 && ThreadLocalRandom.current().nextInt(DEBUG_SAMPLING) != 0) {
+            return;
+        }
+
+        long sequence = nextSequence.get();
+        int index;
+        while (true) {
+            index = (int) sequence & (BUFFER_SIZE - 1);
+            long slot = sequences.get(index);
+            if (slot == sequence) {
+                if (nextSequence.compareAndSet(sequence, sequence + 1)) {
+                    break;
+                }
+                sequence = nextSequence.get();
+            } else if (slot < sequence) {
+                // The writer has not freed this slot since the last lap: the buffer is full
+                dropped.increment();
+                return;
+            } else {
+                sequence = nextSequence.get();
+            }
+        }
+
+        Record record = records[index];
+        record.timeMillis = System.currentTimeMillis();
+        record.level = recordLevel;
+        record.message = message;
+        record.count = count;
+        record.a = a;
+        record.b = b;
+        record.c = c;
+        sequences.set(index, sequence + 1);
+        if (writerIdle) {
+            // The buffer was empty; while it is not, the writer keeps draining without being woken
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Writes out everything logged so far; used at shutdown.
+     */
+    public static void flush() {
+        drainLock.lock();
+        try {
+            drain();
+            flushOutput();
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    private static void drainLoop() {
+        while (true) {
+            int written;
+            drainLock.lock();
+            try {
+                written = drain();
+                if (written > 0) {
+                    flushOutput();
+                }
+            } finally {
+                drainLock.unlock();
+            }
+            if (written == 0) {
+                // Say we are going idle, then look once more: a record published before the flag
+                // was set is seen here, and one published after it sees the flag and unparks us
+                writerIdle = true;
+                if (!hasPending()) {
+                    LockSupport.park();
+                }
+                writerIdle = false;
+            }
+        }
+    }
+
+    private static boolean hasPending() {
+        drainLock.lock();
+        try {
+            return sequences.get((int) drainSequence & (BUFFER_SIZE - 1)) == drainSequence + 1;
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    private static int drain() {
+        int written = 0;
+        while (true) {
+            int index = (int) drainSequence & (BUFFER_SIZE - 1);
+            if (sequences.get(index) != drainSequence + 1) {
+                return written;
+            }
+            Record record = records[index];
+            format(record);
+            record.clear();
+            sequences.set(index, drainSequence + BUFFER_SIZE);
+            drainSequence++;
+            write();
+            written++;
+        }
+    }
+
+    private static void format(Record record) {
+        line.setLength(0);
+        if (record.timeMillis != stampMillis) {
+            stampMillis = record.timeMillis;
+            stamp = TIME_FORMAT.format(Instant.ofEpochMilli(stampMillis));
+        }
+        line.append(stamp).append(' ').append(record.level);
+        for (int pad = record.level.name().length(); pad < 5; pad++) {
+            line.append(' ');
+        }
+        line.append(' ');
+
+        Object[] args = {record.a, record.b, record.c};
+        int count = record.count;
+        int used = 0;
+        String message = record.message;
+        int from = 0;
+        int placeholder;
+        while (used < count && (placeholder = message.indexOf("{}", from)) >= 0) {
+            line.append(message, from, placeholder).append(args[used++]);
+            from = placeholder + 2;
+        }
+        line.append(message, from, message.length());
+
+        for (int i = used; i < count; i++) {
+            if (args[i] instanceof Throwable error) {
+                StringWriter trace = new StringWriter();
+                error.printStackTrace(new PrintWriter(trace));
+                line.append(System.lineSeparator()).append(trace.toString().stripTrailing());
+            }
+        }
+        line.append(System.lineSeparator());
+    }
+
+    private static void write() {
+        if (FILE.isEmpty()) {
+            PrintStream console = System.out;
+            console.append(line);
+            return;
+        }
+        try {
+            if (file == null || fileBytes + line.length() > MAX_FILE_BYTES) {
+                rotate();
+            }
+            file.append(line);
+            fileBytes += line.length();
+        } catch (IOException e) {
+            // Nowhere better to report it; keep the record on the console instead
+            System.out.append(line);
+            file = null;
+        }
+    }
+
+    /**
+     * Moves log to log.1, log.1 to log.2 and so on, dropping the oldest, then starts a new log.
+     * The log is only moved once it has content, so a restart appends to it.
+     */
+    private static void rotate() throws IOException {
+        Path path = Paths.get(FILE);
+        if (file != null) {
+            file.close();
+            file = null;
+        }
+        if (Files.exists(path) && Files.size(path) > 0 && (fileBytes > 0 || Files.size(path) >= MAX_FILE_BYTES)) {
+            for (int i = MAX_FILES - 1; i >= 1; i--) {
+                Path older = Paths.get(FILE + "." + i);
+                if (Files.exists(older)) {
+                    Files.move(older, Paths.get(FILE + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if (MAX_FILES > 0) {
+                Files.move(path, Paths.get(FILE + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.delete(path);
+            }
+        }
+        file = new BufferedWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024);
+        fileBytes = Files.size(path);
+    }
+
+    private static void flushOutput() {
+        if (FILE.isEmpty()) {
+            System.out.flush();
+            return;
+        }
+        try {
+            if (file != null) {
+                file.flush();
+            }
+        } catch (IOException e) {
+            file = null;
+        }
+    }
+
+    private static final class Record {
+        long timeMillis;
+        Level level;
+        String message;
+        int count;
+        Object a;
+        Object b;
+        Object c;
+
+        void clear() {
+            message = null;
+            a = null;
+            b = null;
+            c = null;
+        }
+    }
+}
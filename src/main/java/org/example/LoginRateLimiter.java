@@ -0,0 +1,103 @@
+package org.example;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket per source address for credential checks: each address may make
+ * {@code burst} attempts at once and then {@code perSecond} attempts per second.
+ */
+public class LoginRateLimiter {
+    private static final double PER_SECOND = Double.parseDouble(System.getProperty("chat.auth.ratePerSecond", "2"));
+    private static final int BURST = Integer.getInteger("chat.auth.burst", 10);
+    private static final int SWEEP_THRESHOLD = 10000;
+
+    private final double perSecond;
+    private final int burst;
+    private final Map<InetAddress, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong();
+    private final long sweepIntervalNanos;
+    private final AtomicLong lastSweepNanos = new AtomicLong(System.nanoTime());
+
+    public LoginRateLimiter(double perSecond, int burst) {
+        this.perSecond = perSecond;
+        this.burst = burst;
+        // An emptied bucket takes burst / perSecond to refill, so sweeping more often finds nothing new
+        this.sweepIntervalNanos = Math.max(1_000_000_000L, (long) (burst / perSecond * 1e9));
+    }
+
+    /**
+     * Limiter configured from the chat.auth.ratePerSecond and chat.auth.burst system properties.
+     */
+    public static LoginRateLimiter createDefault() {
+        return new LoginRateLimiter(PER_SECOND, BURST);
+    }
+
+    public boolean tryAcquire(InetAddress address) {
+        long now = System.nanoTime();
+        if (buckets.size() > SWEEP_THRESHOLD) {
+            long lastSweep = lastSweepNanos.get();
+            // Only the caller that moves the timestamp sweeps; the others go straight on
+            if (now - lastSweep >= sweepIntervalNanos && lastSweepNanos.compareAndSet(lastSweep, now)) {
+                sweep(now);
+            }
+        }
+        Bucket bucket = buckets.computeIfAbsent(address, a -> new Bucket(burst, now));
+        boolean allowed;
+        synchronized (bucket) {
+            allowed = bucket.take(now, perSecond, burst);
+        }
+        if (!allowed) {
+            rejected.incrementAndGet();
+        }
+        return allowed;
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Forgets addresses whose bucket has refilled; they behave exactly like new ones. Runs at
+     * most once per refill time, so many addresses cost one scan per interval, not one per call.
+     */
+    private void sweep(long now) {
+        buckets.entrySet().removeIf(entry -> {
+            Bucket bucket = entry.getValue();
+            synchronized (bucket) {
+                return bucket.isFull(now, perSecond, burst);
+            }
+        });
+    }
+
+    private static class Bucket {
+        private double tokens;
+        private long lastRefillNanos;
+
+        Bucket(int burst, long now) {
+            this.tokens = burst;
+            this.lastRefillNanos = now;
+        }
+
+        boolean take(long now, double perSecond, int burst) {
+            refill(now, perSecond, burst);
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        boolean isFull(long now, double perSecond, int burst) {
+            refill(now, perSecond, burst);
+            return tokens >= burst;
+        }
+
+        private void refill(long now, double perSecond, int burst) {
+            tokens = Math.min(burst, tokens + (now - lastRefillNanos) / 1e9 * perSecond);
+            lastRefillNanos = now;
+        }
+    }
+}
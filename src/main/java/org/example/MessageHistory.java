@@ -0,0 +1,161 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed-size message history of a room. Messages are stored as UTF-8 in a ring buffer
+ * (on or off heap); once it is full, or messages get older than the age limit, the oldest
+ * ones are overwritten. Memory use is bounded no matter how long the room lives, and the
+ * buffer is only allocated with the first message, so rooms nobody talks in cost next to nothing.
+ */
+public class MessageHistory {
+    private static final int DEFAULT_CAPACITY_BYTES = Integer.getInteger("chat.history.bytes", 256 * 1024);
+    private static final long DEFAULT_MAX_AGE_SECONDS = Long.getLong("chat.history.maxAgeSeconds", 0);
+    private static final boolean DEFAULT_DIRECT = Boolean.getBoolean("chat.history.direct");
+    private static final int MIN_AVERAGE_MESSAGE_BYTES = 16;
+
+    private final int capacityBytes;
+    private final long maxAgeMillis;
+    private final boolean direct;
+    private ByteBuffer data;
+
+    // Per-entry metadata, indexed by entry number modulo maxEntries
+    private final int maxEntries;
+    private long[] starts;
+    private int[] lengths;
+    private long[] timestamps;
+
+    private long head; // number of the oldest live entry
+    private long tail; // number of the next entry to write
+    private long writePosition; // total bytes ever written
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public MessageHistory(int capacityBytes, long maxAgeMillis, boolean direct) {
+        if (capacityBytes <= 0) {
+            throw new IllegalArgumentException("History capacity must be positive");
+        }
+        this.capacityBytes = capacityBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.direct = direct;
+        this.maxEntries = Math.max(1, capacityBytes / MIN_AVERAGE_MESSAGE_BYTES);
+    }
+
+    /**
+     * History sized from the chat.history.* system properties.
+     */
+    public static MessageHistory createDefault() {
+        return new MessageHistory(DEFAULT_CAPACITY_BYTES, DEFAULT_MAX_AGE_SECONDS * 1000, DEFAULT_DIRECT);
+    }
+
+    public void append(String message) {
+        append(message, System.currentTimeMillis());
+    }
+
+    public void append(String message, long timestamp) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > capacityBytes) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (data == null) {
+                allocate();
+            }
+            evictExpired(System.currentTimeMillis());
+            while (tail > head && (tail - head == maxEntries
+                    || writePosition + bytes.length - starts[slot(head)] > capacityBytes)) {
+                head++;
+            }
+
+            int position = (int) (writePosition % capacityBytes);
+            int first = Math.min(bytes.length, capacityBytes - position);
+            data.put(position, bytes, 0, first);
+            if (first < bytes.length) {
+                data.put(0, bytes, first, bytes.length - first);
+            }
+
+            int slot = slot(tail);
+            starts[slot] = writePosition;
+            lengths[slot] = bytes.length;
+            timestamps[slot] = timestamp;
+            tail++;
+            writePosition += bytes.length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns up to {@code count} of the most recent messages, oldest first. Only the
+     * requested entries are decoded.
+     */
+    public List<String> last(int count) {
+        lock.lock();
+        try {
+            evictExpired(System.currentTimeMillis());
+            long from = Math.max(head, tail - Math.max(0, count));
+            List<String> result = new ArrayList<>((int) (tail - from));
+            for (long entry = from; entry < tail; entry++) {
+                result.add(read(entry));
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<String> all() {
+        return last(Integer.MAX_VALUE);
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return (int) (tail - head);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    private void allocate() {
+        data = direct ? ByteBuffer.allocateDirect(capacityBytes) : ByteBuffer.allocate(capacityBytes);
+        starts = new long[maxEntries];
+        lengths = new int[maxEntries];
+        timestamps = new long[maxEntries];
+    }
+
+    private String read(long entry) {
+        int slot = slot(entry);
+        int length = lengths[slot];
+        byte[] bytes = new byte[length];
+        int position = (int) (starts[slot] % capacityBytes);
+        int first = Math.min(length, capacityBytes - position);
+        data.get(position, bytes, 0, first);
+        if (first < length) {
+            data.get(0, bytes, first, length - first);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void evictExpired(long now) {
+        if (maxAgeMillis <= 0) {
+            return;
+        }
+        while (tail > head && now - timestamps[slot(head)] > maxAgeMillis) {
+            head++;
+        }
+    }
+
+    private int slot(long entry) {
+        return (int) (entry % maxEntries);
+    }
+}
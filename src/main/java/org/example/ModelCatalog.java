@@ -0,0 +1,209 @@
+package org.example;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cached list of the models installed on an Ollama host ({@code /api/tags}).
+ *
+ * <p>A fresh list is served from memory. Once it is older than the TTL it is still served,
+ * while one background request refreshes it; only when there is no list at all, or it is
+ * older than the stale limit, do callers wait. Concurrent refreshes share one request.
+ *
+ * <p>Asking for a model that is not in the list fetches it again, but only if the list is older
+ * than the recheck interval, so clients naming unknown models cannot make every lookup a fetch.
+ */
+public class ModelCatalog {
+    private static final long TTL_MILLIS = Long.getLong("chat.llm.catalogTtlSeconds", 30) * 1000;
+    private static final long MAX_STALE_MILLIS = Long.getLong("chat.llm.catalogMaxStaleSeconds", 300) * 1000;
+    private static final long RECHECK_MILLIS = Long.getLong("chat.llm.catalogRecheckSeconds", 5) * 1000;
+
+    private static final Map<String, ModelCatalog> catalogs = new ConcurrentHashMap<>();
+
+    private final HttpClient httpClient;
+    private final String host;
+    private final long ttlMillis;
+    private final long maxStaleMillis;
+    private final long recheckMillis;
+
+    private volatile Snapshot current;
+    private final Lock refreshLock = new ReentrantLock();
+    private CompletableFuture<Snapshot> refreshing;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong fetches = new AtomicLong();
+    private final AtomicLong fetchFailures = new AtomicLong();
+
+    public ModelCatalog(HttpClient httpClient, String host, long ttlMillis, long maxStaleMillis, long recheckMillis) {
+        this.httpClient = httpClient;
+        this.host = host;
+        this.ttlMillis = ttlMillis;
+        this.maxStaleMillis = Math.max(ttlMillis, maxStaleMillis);
+        this.recheckMillis = Math.min(ttlMillis, recheckMillis);
+    }
+
+    /**
+     * The shared catalog of a host, configured from the chat.llm.catalog* system properties.
+     */
+    public static ModelCatalog forHost(HttpClient httpClient, String host) {
+        return catalogs.computeIfAbsent(host, h -> new ModelCatalog(httpClient, h, TTL_MILLIS, MAX_STALE_MILLIS,
+                RECHECK_MILLIS));
+    }
+
+    public List<String> getModels() throws IOException, InterruptedException {
+        return lookup().models;
+    }
+
+    /**
+     * Whether the model is installed; {@code name} may omit the ":latest" tag. A model that is
+     * not in the cached list triggers a refresh before answering no, so a model pulled after the
+     * last fetch is found right away, unless the list was fetched within the recheck interval.
+     */
+    public boolean isInstalled(String name) throws IOException, InterruptedException {
+        Snapshot snapshot = lookup();
+        if (contains(snapshot.models, name)) {
+            return true;
+        }
+        if (System.currentTimeMillis() - snapshot.fetchedAtMillis < recheckMillis) {
+            return false;
+        }
+        return contains(await(refresh()).models, name);
+    }
+
+    private Snapshot lookup() throws IOException, InterruptedException {
+        Snapshot snapshot = current;
+        long now = System.currentTimeMillis();
+        if (snapshot != null && now - snapshot.fetchedAtMillis <= ttlMillis) {
+            hits.incrementAndGet();
+            return snapshot;
+        }
+        if (snapshot != null && now - snapshot.fetchedAtMillis <= maxStaleMillis) {
+            staleHits.incrementAndGet();
+            refresh();
+            return snapshot;
+        }
+        misses.incrementAndGet();
+        return await(refresh());
+    }
+
+    /**
+     * Drops the cached list; the next lookup fetches it again.
+     */
+    public void invalidate() {
+        current = null;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getStaleHitCount() {
+        return staleHits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getFetchCount() {
+        return fetches.get();
+    }
+
+    public long getFetchFailureCount() {
+        return fetchFailures.get();
+    }
+
+    private CompletableFuture<Snapshot> refresh() {
+        refreshLock.lock();
+        try {
+            if (refreshing != null) {
+                return refreshing;
+            }
+            CompletableFuture<Snapshot> fetch = fetch();
+            refreshing = fetch;
+            fetch.whenComplete((snapshot, error) -> {
+                refreshLock.lock();
+                try {
+                    if (error == null) {
+                        current = snapshot;
+                    } else {
+                        fetchFailures.incrementAndGet();
+                    }
+                    refreshing = null;
+                } finally {
+                    refreshLock.unlock();
+                }
+            });
+            return fetch;
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    private CompletableFuture<Snapshot> fetch() {
+        fetches.incrementAndGet();
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(host + "/api/tags"))
+                .GET()
+                .build();
+
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()).thenApply(response -> {
+            if (response.statusCode() != 200) {
+                throw new CompletionException(new IOException("Ollama returned HTTP " + response.statusCode()
+                        + " for /api/tags"));
+            }
+            JSONObject json = new JSONObject(response.body());
+            JSONArray models = json.getJSONArray("models");
+
+            List<String> modelNames = new ArrayList<>();
+            for (int i = 0; i < models.length(); i++) {
+                JSONObject model = models.getJSONObject(i);
+                modelNames.add(model.getString("name"));
+            }
+            return new Snapshot(Collections.unmodifiableList(modelNames), System.currentTimeMillis());
+        });
+    }
+
+    private static boolean contains(List<String> models, String name) {
+        for (String model : models) {
+            if (model.equals(name) || model.replace(":latest", "").equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Snapshot await(CompletableFuture<Snapshot> fetch) throws IOException, InterruptedException {
+        try {
+            return fetch.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Could not list models: " + cause.getMessage(), cause);
+        }
+    }
+
+    private record Snapshot(List<String> models, long fetchedAtMillis) {
+    }
+}
@@ -0,0 +1,526 @@
+package org.example;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A TLS connection driven by a {@link NioEventLoop}. All SSLEngine and channel work happens
+ * on the event loop thread; decoded lines are handed to the {@link ClientHandler} one at a
+ * time on a virtual thread, so slow commands never stall the selector.
+ *
+ * <p>If the first line asks for {@link WireProtocol binary frames}, everything after it is
+ * decoded as frames instead; the switch happens here, since the bytes right after that line
+ * may already be frames.
+ */
+public class NioConnection implements ClientConnection {
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+    private static final int MAX_PENDING_LINES = 64;
+    private static final int MAX_PENDING_OUTBOUND_BYTES = 256 * 1024;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final NioEventLoop loop;
+    private final InetAddress inetAddress;
+    private SelectionKey key;
+    private ClientHandler handler;
+
+    // Event loop state
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private ByteBuffer netOut;
+    private byte[] lineBytes = new byte[256];
+    private int lineLength;
+    private boolean firstLine = true;
+    private boolean framed;
+    private final byte[] frameHeader = new byte[WireProtocol.HEADER_BYTES];
+    private int frameHeaderLength;
+    private byte[] framePayload;
+    private int framePayloadLength;
+    private boolean readPaused;
+
+    // Plaintext written by any thread, wrapped by the event loop
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+    private final ReentrantLock outboundLock = new ReentrantLock();
+    private final Condition outboundNotFull = outboundLock.newCondition();
+    private int outboundBytes;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    // Work handed to the handler, executed serially off the event loop
+    private final Queue<Runnable> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean dispatching = new AtomicBoolean();
+    private final AtomicInteger pendingLines = new AtomicInteger();
+
+    private volatile boolean closeRequested;
+    private volatile long closeRequestedMillis;
+    private volatile boolean closed;
+    private volatile long lastReadMillis = System.currentTimeMillis();
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            enqueue(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+        }
+    };
+
+    public NioConnection(SocketChannel channel, SSLEngine engine, NioEventLoop loop) throws IOException {
+        this.channel = channel;
+        this.engine = engine;
+        this.loop = loop;
+        this.inetAddress = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+
+        int packetSize = engine.getSession().getPacketBufferSize();
+        this.netIn = ByteBuffer.allocate(packetSize);
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        this.netOut = ByteBuffer.allocate(packetSize);
+        this.netOut.flip();
+    }
+
+    void open(SelectionKey key, ClientHandler handler) throws IOException {
+        this.key = key;
+        this.handler = handler;
+        engine.beginHandshake();
+        dispatch(handler::open);
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Queues a read-only view of {@code data}; the event loop encrypts straight from it.
+     */
+    @Override
+    public void writeShared(byte[] data) throws IOException {
+        enqueue(ByteBuffer.wrap(data).asReadOnlyBuffer());
+    }
+
+    public InetAddress getInetAddress() {
+        return inetAddress;
+    }
+
+    public boolean isClosed() {
+        return closed || closeRequested;
+    }
+
+    /**
+     * Closes the connection once everything already written has reached the socket.
+     */
+    public void close() {
+        if (closeRequested || closed) {
+            return;
+        }
+        closeRequestedMillis = System.currentTimeMillis();
+        closeRequested = true;
+        loop.execute(this::flushSafely);
+    }
+
+    long getLastReadMillis() {
+        return lastReadMillis;
+    }
+
+    /**
+     * True once a graceful close has been waiting longer than the close timeout, i.e. the
+     * peer is not reading what is left in its buffers.
+     */
+    boolean isCloseStalled(long now) {
+        return closeRequested && !closed && now - closeRequestedMillis > CLOSE_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * Queues plaintext for the event loop. Blocks the (virtual) writer thread while too much
+     * output is pending, so a slow reader pushes back into its handler's outbound queue.
+     */
+    void enqueue(ByteBuffer data) throws IOException {
+        outboundLock.lock();
+        try {
+            while (outboundBytes >= MAX_PENDING_OUTBOUND_BYTES && !closed && !closeRequested) {
+                outboundNotFull.await();
+            }
+            if (closed || closeRequested) {
+                throw new IOException("Connection closed");
+            }
+            outbound.add(data);
+            outboundBytes += data.remaining();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to write");
+        } finally {
+            outboundLock.unlock();
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                flushSafely();
+            });
+        }
+    }
+
+    void handleReadable() {
+        try {
+            int read = channel.read(netIn);
+            if (read < 0) {
+                try {
+                    engine.closeInbound();
+                } catch (SSLException ignored) {
+                    // Peer went away without close_notify
+                }
+                closeNow();
+                return;
+            }
+            lastReadMillis = System.currentTimeMillis();
+            processInbound();
+            if (!closed) {
+                flushOutbound();
+            }
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    void handleWritable() {
+        flushSafely();
+    }
+
+    private void flushSafely() {
+        if (closed) {
+            return;
+        }
+        try {
+            flushOutbound();
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    private void processInbound() throws IOException {
+        netIn.flip();
+        try {
+            while (netIn.hasRemaining()) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                switch (result.getStatus()) {
+                    case BUFFER_OVERFLOW:
+                        appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+                        continue;
+                    case BUFFER_UNDERFLOW:
+                        return;
+                    case CLOSED:
+                        closeNow();
+                        return;
+                    default:
+                        break;
+                }
+
+                if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                }
+                if (appIn.position() > 0) {
+                    decodeInbound();
+                }
+                if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                    flushOutbound();
+                }
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                    return;
+                }
+            }
+        } finally {
+            if (!closed) {
+                netIn.compact();
+                if (!netIn.hasRemaining()) {
+                    netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+                }
+            }
+        }
+    }
+
+    private void flushOutbound() throws IOException {
+        while (true) {
+            if (netOut.hasRemaining()) {
+                channel.write(netOut);
+                if (netOut.hasRemaining()) {
+                    setWriteInterest(true);
+                    return;
+                }
+            }
+
+            HandshakeStatus status = engine.getHandshakeStatus();
+            ByteBuffer source;
+            if (status == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                continue;
+            } else if (status == HandshakeStatus.NEED_WRAP) {
+                source = EMPTY;
+            } else if (status == HandshakeStatus.NEED_UNWRAP || status == HandshakeStatus.NEED_UNWRAP_AGAIN) {
+                setWriteInterest(false);
+                return;
+            } else {
+                source = peekOutbound();
+                if (source == null) {
+                    setWriteInterest(false);
+                    if (closeRequested) {
+                        closeNow();
+                    }
+                    return;
+                }
+            }
+
+            netOut.clear();
+            SSLEngineResult result = engine.wrap(source, netOut);
+            netOut.flip();
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    netOut = ByteBuffer.allocate(Math.max(engine.getSession().getPacketBufferSize(), netOut.capacity() * 2));
+                    netOut.flip();
+                    break;
+                case CLOSED:
+                    closeNow();
+                    return;
+                default:
+                    if (source != EMPTY && !source.hasRemaining()) {
+                        pollOutbound();
+                    }
+                    break;
+            }
+        }
+    }
+
+    private ByteBuffer peekOutbound() {
+        outboundLock.lock();
+        try {
+            return outbound.peek();
+        } finally {
+            outboundLock.unlock();
+        }
+    }
+
+    private void pollOutbound() {
+        outboundLock.lock();
+        try {
+            outboundBytes -= outbound.poll().limit();
+            if (outboundBytes < MAX_PENDING_OUTBOUND_BYTES) {
+                outboundNotFull.signalAll();
+            }
+        } finally {
+            outboundLock.unlock();
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void decodeInbound() {
+        appIn.flip();
+        if (!framed) {
+            decodeLines();
+        }
+        if (framed && !closed) {
+            decodeFrames();
+        }
+        appIn.clear();
+    }
+
+    private void decodeLines() {
+        while (appIn.hasRemaining()) {
+            byte b = appIn.get();
+            if (b == '\n') {
+                int length = lineLength;
+                if (length > 0 && lineBytes[length - 1] == '\r') {
+                    length--;
+                }
+                String line = new String(lineBytes, 0, length, StandardCharsets.UTF_8);
+                lineLength = 0;
+                deliverLine(line);
+                if (firstLine) {
+                    firstLine = false;
+                    if (line.equals(WireProtocol.NEGOTIATE)) {
+                        framed = true;
+                        return;
+                    }
+                }
+            } else {
+                if (lineLength == MAX_LINE_BYTES) {
+                    Log.warn("Line too long from {}, closing connection", inetAddress);
+                    closeNow();
+                    return;
+                }
+                if (lineLength == lineBytes.length) {
+                    lineBytes = Arrays.copyOf(lineBytes, Math.min(lineBytes.length * 2, MAX_LINE_BYTES));
+                }
+                lineBytes[lineLength++] = b;
+            }
+        }
+    }
+
+    /**
+     * Copies each payload straight from the decrypted buffer into an array of its own size,
+     * which becomes the frame handed to the handler.
+     */
+    private void decodeFrames() {
+        while (appIn.hasRemaining()) {
+            if (framePayload == null) {
+                int n = Math.min(WireProtocol.HEADER_BYTES - frameHeaderLength, appIn.remaining());
+                appIn.get(frameHeader, frameHeaderLength, n);
+                frameHeaderLength += n;
+                if (frameHeaderLength < WireProtocol.HEADER_BYTES) {
+                    return;
+                }
+                int length = WireProtocol.payloadLength(frameHeader);
+                if (length < 0 || length > WireProtocol.MAX_REQUEST_PAYLOAD) {
+                    Log.warn("Bad frame length {} from {}, closing connection", length, inetAddress);
+                    closeNow();
+                    return;
+                }
+                framePayload = new byte[length];
+                framePayloadLength = 0;
+            }
+
+            int n = Math.min(framePayload.length - framePayloadLength, appIn.remaining());
+            appIn.get(framePayload, framePayloadLength, n);
+            framePayloadLength += n;
+            if (framePayloadLength == framePayload.length) {
+                WireProtocol.Frame frame = new WireProtocol.Frame(frameHeader, framePayload);
+                framePayload = null;
+                frameHeaderLength = 0;
+                deliver(() -> handler.processFrame(frame));
+            }
+        }
+    }
+
+    private void deliverLine(String line) {
+        deliver(() -> handler.processLine(line));
+    }
+
+    private void deliver(Runnable work) {
+        if (pendingLines.incrementAndGet() >= MAX_PENDING_LINES && !readPaused) {
+            readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        dispatch(() -> {
+            try {
+                work.run();
+            } finally {
+                // Even if the handler threw, or reads stay paused for good
+                if (pendingLines.decrementAndGet() == MAX_PENDING_LINES / 2) {
+                    loop.execute(this::resumeReads);
+                }
+            }
+        });
+    }
+
+    private void resumeReads() {
+        if (readPaused && key.isValid()) {
+            readPaused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void setWriteInterest(boolean enabled) {
+        if (!key.isValid()) {
+            return;
+        }
+        int ops = key.interestOps();
+        int updated = enabled ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE;
+        if (updated != ops) {
+            key.interestOps(updated);
+        }
+    }
+
+    private void dispatch(Runnable task) {
+        inbound.add(task);
+        if (dispatching.compareAndSet(false, true)) {
+            Thread.startVirtualThread(this::drainInbound);
+        }
+    }
+
+    private void drainInbound() {
+        while (true) {
+            Runnable task;
+            while ((task = inbound.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.error("Error handling client input from {}", inetAddress, e);
+                }
+            }
+            dispatching.set(false);
+            if (inbound.isEmpty() || !dispatching.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            engine.closeOutbound();
+            netOut.clear();
+            engine.wrap(EMPTY, netOut);
+            netOut.flip();
+            channel.write(netOut);
+        } catch (IOException ignored) {
+            // Best effort close_notify
+        }
+
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+
+        outboundLock.lock();
+        try {
+            outbound.clear();
+            outboundBytes = 0;
+            outboundNotFull.signalAll();
+        } finally {
+            outboundLock.unlock();
+        }
+
+        if (handler != null) {
+            dispatch(handler::connectionClosed);
+        }
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minimumCapacity) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(minimumCapacity, buffer.capacity() * 2));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
@@ -0,0 +1,137 @@
+package org.example;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+
+/**
+ * One selector thread of the NIO front end. It owns the channels and SSL engines
+ * registered with it; other threads only talk to it through {@link #execute(Runnable)}.
+ */
+public class NioEventLoop implements Runnable {
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+    private static final long IDLE_TIMEOUT_MILLIS = 120000;
+
+    private final Selector selector;
+    private final SSLContext sslContext;
+    private final Function<NioConnection, ClientHandler> handlerFactory;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private Thread thread;
+
+    public NioEventLoop(SSLContext sslContext, Function<NioConnection, ClientHandler> handlerFactory) throws IOException {
+        this.selector = Selector.open();
+        this.sslContext = sslContext;
+        this.handlerFactory = handlerFactory;
+    }
+
+    public void start(String name) {
+        thread = Thread.ofPlatform().name(name).daemon(false).start(this);
+    }
+
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                SSLEngine engine = sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                engine.setEnabledProtocols(TlsContexts.PROTOCOLS);
+
+                NioConnection connection = new NioConnection(channel, engine, this);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.open(key, handlerFactory.apply(connection));
+            } catch (IOException e) {
+                Log.warn("Failed to register client channel: {}", e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+            }
+        });
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long lastIdleCheck = System.currentTimeMillis();
+        while (running) {
+            try {
+                selector.select(SELECT_TIMEOUT_MILLIS);
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isReadable()) {
+                        connection.handleReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.handleWritable();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= SELECT_TIMEOUT_MILLIS) {
+                    closeIdleConnections(now);
+                    lastIdleCheck = now;
+                }
+            } catch (IOException e) {
+                Log.error("Event loop error", e);
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            ((NioConnection) key.attachment()).closeNow();
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.error("Event loop task failed", e);
+            }
+        }
+    }
+
+    private void closeIdleConnections(long now) {
+        for (SelectionKey key : selector.keys()) {
+            NioConnection connection = (NioConnection) key.attachment();
+            if (connection != null && (now - connection.getLastReadMillis() > IDLE_TIMEOUT_MILLIS
+                    || connection.isCloseStalled(now))) {
+                connection.closeNow();
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.example;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.function.Function;
+
+/**
+ * Non-blocking front end: a single acceptor hands channels round-robin to a small set of
+ * {@link NioEventLoop}s, which do the TLS work and line framing for every connection.
+ */
+public class NioServer {
+    private final int port;
+    private final NioEventLoop[] loops;
+    private int nextLoop;
+
+    public NioServer(int port, SSLContext sslContext, int threads,
+                     Function<NioConnection, ClientHandler> handlerFactory) throws IOException {
+        this.port = port;
+        this.loops = new NioEventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new NioEventLoop(sslContext, handlerFactory);
+        }
+    }
+
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i].start("nio-loop-" + i);
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            Log.info("Secure NIO server listening on port {} with {} event loops", port, loops.length);
+
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.socket().setTcpNoDelay(true);
+                Log.info("New client connected: {}", channel.socket().getInetAddress());
+                loops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+        } finally {
+            for (NioEventLoop loop : loops) {
+                loop.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Something to send to a client, in a form that both protocols can write: the text line for
+ * line clients, and opcode, flags and room id for clients that negotiated
+ * {@link WireProtocol binary frames}.
+ *
+ * <p>A broadcast creates one message for all recipients. Each encoding is built the first time
+ * a writer needs it and then shared, so a room of N members encodes a message once per
+ * protocol in use rather than N times.
+ */
+public final class OutboundMessage {
+    /**
+     * Reply to {@link WireProtocol#NEGOTIATE}; the writer switches to frames right after it.
+     */
+    static final OutboundMessage BINARY_ACCEPTED = new OutboundMessage(WireProtocol.TEXT, (byte) 0, 0,
+            WireProtocol.ACCEPTED, WireProtocol.ACCEPTED);
+
+    private final byte opcode;
+    private final byte flags;
+    private final int roomId;
+    private final String line;
+    private final String payload;
+
+    // Built on first use; a race only means the same bytes are built twice
+    private volatile byte[] lineBytes;
+    private volatile byte[] frameBytes;
+
+    private OutboundMessage(byte opcode, byte flags, int roomId, String line, String payload) {
+        this.opcode = opcode;
+        this.flags = flags;
+        this.roomId = roomId;
+        this.line = line;
+        this.payload = payload;
+    }
+
+    public static OutboundMessage text(String text) {
+        return of(WireProtocol.TEXT, 0, text);
+    }
+
+    public static OutboundMessage of(byte opcode, int roomId, String text) {
+        return new OutboundMessage(opcode, (byte) 0, roomId, text, text);
+    }
+
+    /**
+     * A message in a room; {@code flags} are {@link WireProtocol}'s MESSAGE flags.
+     */
+    public static OutboundMessage roomMessage(int roomId, byte flags, String text) {
+        return new OutboundMessage(WireProtocol.MESSAGE, flags, roomId, text, text);
+    }
+
+    /**
+     * A reconnect token. Line clients get it prefixed with {@code AUTH_TOKEN}, binary clients
+     * just the token.
+     */
+    public static OutboundMessage token(String token) {
+        return new OutboundMessage(WireProtocol.TOKEN, (byte) 0, 0, "AUTH_TOKEN " + token, token);
+    }
+
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    public int getRoomId() {
+        return roomId;
+    }
+
+    /**
+     * Whether a full queue may drop this message: room traffic may, control replies may not.
+     */
+    public boolean isSheddable() {
+        return opcode == WireProtocol.MESSAGE;
+    }
+
+    public String getLine() {
+        return line;
+    }
+
+    /**
+     * The text line in UTF-8, newline included. The array is shared and must not be modified.
+     */
+    public byte[] encodeLine() {
+        byte[] encoded = lineBytes;
+        if (encoded == null) {
+            byte[] utf8 = line.getBytes(StandardCharsets.UTF_8);
+            encoded = Arrays.copyOf(utf8, utf8.length + 1);
+            encoded[utf8.length] = '\n';
+            lineBytes = encoded;
+        }
+        return encoded;
+    }
+
+    /**
+     * The binary frame. The array is shared and must not be modified.
+     */
+    public byte[] encodeFrame() {
+        byte[] encoded = frameBytes;
+        if (encoded == null) {
+            encoded = WireProtocol.encode(opcode, flags, roomId, payload);
+            frameBytes = encoded;
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,174 @@
+package org.example;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded per-client queue of outgoing messages. Producers (room broadcasts, command replies)
+ * never block: when the queue is full the configured {@link OverflowPolicy} decides what
+ * happens. A single writer thread drains it into the client's socket.
+ *
+ * <p>The drop policies only drop room messages. Control replies such as the binary protocol
+ * acceptance or a reconnect token are queued even when the queue is full, since losing one
+ * would leave the client stuck. They only come in reply to the client's own commands.
+ */
+public class OutboundQueue {
+
+    public enum OverflowPolicy {
+        DROP_OLDEST,
+        DROP_NEW,
+        DISCONNECT
+    }
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Deque<OutboundMessage> messages = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean closed;
+
+    private long dropped;
+    private int maxDepth;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Returns false if the message was not queued because the queue is closed or because it
+     * is full and the policy is {@link OverflowPolicy#DISCONNECT}.
+     */
+    public boolean offer(OutboundMessage message) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (messages.size() >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        if (!dropOldestSheddable() && message.isSheddable()) {
+                            dropped++;
+                            return true;
+                        }
+                        break;
+                    case DROP_NEW:
+                        if (message.isSheddable()) {
+                            dropped++;
+                            return true;
+                        }
+                        break;
+                    case DISCONNECT:
+                        dropped++;
+                        return false;
+                }
+            }
+            messages.addLast(message);
+            maxDepth = Math.max(maxDepth, messages.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean dropOldestSheddable() {
+        Iterator<OutboundMessage> oldestFirst = messages.iterator();
+        while (oldestFirst.hasNext()) {
+            if (oldestFirst.next().isSheddable()) {
+                oldestFirst.remove();
+                dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Blocks until a message is available. Returns null once the queue is closed and drained.
+     */
+    public OutboundMessage take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            return messages.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the next message, waiting at most {@code timeoutNanos} for one. Returns null if
+     * none arrived in time or the queue is closed and drained.
+     */
+    public OutboundMessage poll(long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty()) {
+                if (closed || timeoutNanos <= 0) {
+                    return null;
+                }
+                timeoutNanos = notEmpty.awaitNanos(timeoutNanos);
+            }
+            return messages.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting messages; whatever is already queued is still handed to the writer.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.example;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs bcrypt on a small, fixed pool of platform threads so that a burst of logins cannot
+ * occupy the carrier threads that run every client. Callers (virtual threads) just park
+ * while their hash is computed. When the queue is full, work is rejected right away instead
+ * of piling up.
+ */
+public class PasswordHasher {
+    private static final int THREADS = Integer.getInteger("chat.auth.threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int QUEUE_CAPACITY = Integer.getInteger("chat.auth.queue", 256);
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong rejected = new AtomicLong();
+
+    public PasswordHasher(int threads, int queueCapacity) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                task -> Thread.ofPlatform().name("bcrypt-" + threadNumber.incrementAndGet()).daemon(true).unstarted(task),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Hasher sized from the chat.auth.threads and chat.auth.queue system properties.
+     */
+    public static PasswordHasher createDefault() {
+        return new PasswordHasher(THREADS, QUEUE_CAPACITY);
+    }
+
+    /**
+     * @throws RejectedExecutionException if too many hashes are already waiting
+     */
+    public boolean checkCredentials(String plainTextPassword, String hashedPassword) throws InterruptedException {
+        return await(submit(() -> PasswordUtil.checkCredentials(plainTextPassword, hashedPassword)));
+    }
+
+    /**
+     * @throws RejectedExecutionException if too many hashes are already waiting
+     */
+    public String encryptPassword(String password) throws InterruptedException {
+        return await(submit(() -> PasswordUtil.encryptPassword(password)));
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    private <T> Future<T> submit(Callable<T> task) {
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    private static <T> T await(Future<T> result) throws InterruptedException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package org.example;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented message log of one room.
+ *
+ * <p>Each segment is a memory-mapped, preallocated {@code <baseOffset>.log} file of records
+ * {@code [int length][int crc32][long timestamp][utf-8 payload]}; every write also puts a zero
+ * length after its record to mark the end. A sparse {@code <baseOffset>.idx} file maps record
+ * offsets to file positions every few KiB, so recovery only scans the tail of a segment instead
+ * of replaying it.
+ *
+ * <p>Only the active segment stays mapped, and it is unmapped as soon as it rolls or the log
+ * closes, so an open log holds one mapping and a closed one none. The mappings of the open logs
+ * count against the kernel's per-process limit ({@code vm.max_map_count} on Linux).
+ *
+ * <p>{@link #append(String)} only hands the record to the {@link RoomLogStore} writer thread,
+ * which writes and fsyncs in batches; everything else here runs on that thread, except
+ * {@link #readRecent(int)}, which is only called while the room is being opened.
+ */
+public class RoomLog {
+    private static final int RECORD_HEADER_BYTES = 16;
+    private static final int INDEX_ENTRY_BYTES = 12;
+    private static final int INDEX_INTERVAL_BYTES = 4096;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final RoomLogStore store;
+    private final String roomName;
+    private final Path directory;
+    private final int segmentBytes;
+    private final int retainSegments;
+    private final long retentionMillis;
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private Segment active;
+    private MemorySegment activeSegment;
+    private ByteBuffer activeMap;
+    // Owns the active segment's mapping, so it is unmapped when the segment rolls or the log closes
+    private Arena activeArena;
+    private FileChannel activeIndex;
+    private long nextOffset;
+    private boolean dirty;
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+
+    RoomLog(RoomLogStore store, String roomName, Path directory, int segmentBytes,
+            int retainSegments, long retentionMillis) throws IOException {
+        this.store = store;
+        this.roomName = roomName;
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retainSegments = retainSegments;
+        this.retentionMillis = retentionMillis;
+
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    public String getRoomName() {
+        return roomName;
+    }
+
+    /**
+     * Queues a message for the writer thread; never touches the disk on the caller's thread.
+     */
+    public void append(String message) {
+        store.submit(this, message.getBytes(StandardCharsets.UTF_8), System.currentTimeMillis());
+    }
+
+    /**
+     * Closes the log on the writer thread, after the appends queued before this call.
+     */
+    public void retire() {
+        store.retire(this);
+    }
+
+    /**
+     * Returns the most recent messages whose payloads fit in {@code maxBytes}, oldest first.
+     * Reading starts at an indexed record, so up to one index interval more may come back.
+     */
+    public List<LoggedMessage> readRecent(int maxBytes) throws IOException {
+        List<LoggedMessage> recent = new ArrayList<>();
+        int budget = maxBytes;
+        Iterator<Segment> newestFirst = segments.descendingIterator();
+        while (budget > 0 && newestFirst.hasNext()) {
+            Segment segment = newestFirst.next();
+            try (FileChannel channel = FileChannel.open(segment.logPath, StandardOpenOption.READ);
+                 Arena arena = Arena.ofConfined()) {
+                ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena).asByteBuffer();
+                int start = segment.indexPositionAtOrBefore(segment.endPosition - budget);
+                List<LoggedMessage> fromSegment = new ArrayList<>();
+                int position = start;
+                while (position < segment.endPosition) {
+                    int length = map.getInt(position);
+                    long timestamp = map.getLong(position + 8);
+                    byte[] payload = new byte[length];
+                    map.get(position + RECORD_HEADER_BYTES, payload);
+                    fromSegment.add(new LoggedMessage(timestamp, new String(payload, StandardCharsets.UTF_8)));
+                    budget -= length;
+                    position += RECORD_HEADER_BYTES + length;
+                }
+                recent.addAll(0, fromSegment);
+                if (start > 0) {
+                    break;
+                }
+            }
+        }
+        return recent;
+    }
+
+    // ---- Writer thread ----
+
+    void write(byte[] payload, long timestamp) throws IOException {
+        int recordBytes = RECORD_HEADER_BYTES + payload.length;
+        if (recordBytes + 4 > segmentBytes) {
+            Log.warn("Dropping oversized log record for room {}", roomName);
+            return;
+        }
+        if (active == null || active.endPosition + recordBytes + 4 > segmentBytes) {
+            roll();
+        }
+
+        int position = active.endPosition;
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        activeMap.putInt(position + 4, (int) crc.getValue());
+        activeMap.putLong(position + 8, timestamp);
+        activeMap.put(position + RECORD_HEADER_BYTES, payload);
+        // The terminator may overwrite a torn record left behind by a crash
+        activeMap.putInt(position + recordBytes, 0);
+        // Length last: a torn write leaves a zero length or a bad CRC, never a bogus record
+        activeMap.putInt(position, payload.length);
+
+        if (position == 0 || position - active.lastIndexedPosition >= INDEX_INTERVAL_BYTES) {
+            writeIndexEntry(nextOffset, position);
+            active.lastIndexedPosition = position;
+        }
+        active.endPosition = position + recordBytes;
+        nextOffset++;
+        dirty = true;
+    }
+
+    void flush() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        activeSegment.force();
+        activeIndex.force(false);
+        dirty = false;
+    }
+
+    void close() throws IOException {
+        if (active != null) {
+            closeActive();
+        }
+    }
+
+    /**
+     * Whether nothing was ever written to this log.
+     */
+    boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    CompletableFuture<Void> getClosed() {
+        return closed;
+    }
+
+    private void writeIndexEntry(long offset, int position) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+        entry.putLong(offset).putInt(position).flip();
+        while (entry.hasRemaining()) {
+            activeIndex.write(entry);
+        }
+        active.index.add(new long[] {offset, position});
+    }
+
+    private void roll() throws IOException {
+        if (active != null) {
+            closeActive();
+        }
+
+        Segment segment = new Segment(nextOffset, directory);
+        openForAppend(segment);
+        segments.addLast(segment);
+        applyRetention();
+    }
+
+    private void openForAppend(Segment segment) throws IOException {
+        Arena arena = Arena.ofShared();
+        try (FileChannel channel = FileChannel.open(segment.logPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            activeSegment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes, arena);
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+        activeArena = arena;
+        activeMap = activeSegment.asByteBuffer();
+        activeIndex = FileChannel.open(segment.indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        active = segment;
+    }
+
+    /**
+     * Flushes the active segment and unmaps it right away rather than whenever the GC gets to it.
+     */
+    private void closeActive() throws IOException {
+        try {
+            flush();
+            activeIndex.close();
+        } finally {
+            activeMap = null;
+            activeSegment = null;
+            activeArena.close();
+            activeArena = null;
+        }
+    }
+
+    private void applyRetention() throws IOException {
+        long now = System.currentTimeMillis();
+        while (segments.size() > 1) {
+            Segment oldest = segments.peekFirst();
+            boolean tooMany = retainSegments > 0 && segments.size() > retainSegments;
+            boolean tooOld = retentionMillis > 0 && now - Files.getLastModifiedTime(oldest.logPath).toMillis() > retentionMillis;
+            if (!tooMany && !tooOld) {
+                break;
+            }
+            segments.removeFirst();
+            Files.deleteIfExists(oldest.logPath);
+            Files.deleteIfExists(oldest.indexPath);
+        }
+    }
+
+    // ---- Recovery ----
+
+    private void recover() throws IOException {
+        List<Long> baseOffsets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + LOG_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                baseOffsets.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+            }
+        }
+        Collections.sort(baseOffsets);
+
+        for (long baseOffset : baseOffsets) {
+            Segment segment = new Segment(baseOffset, directory);
+            segment.loadIndex();
+            nextOffset = segment.scanToEnd();
+            segments.addLast(segment);
+        }
+
+        if (!segments.isEmpty()) {
+            openForAppend(segments.peekLast());
+        }
+    }
+
+    public record LoggedMessage(long timestamp, String text) {
+    }
+
+    private static class Segment {
+        private final long baseOffset;
+        private final Path logPath;
+        private final Path indexPath;
+        private final List<long[]> index = new ArrayList<>(); // {offset, position}
+        private int endPosition;
+        private int lastIndexedPosition;
+
+        Segment(long baseOffset, Path directory) {
+            this.baseOffset = baseOffset;
+            String name = String.format("%020d", baseOffset);
+            this.logPath = directory.resolve(name + LOG_SUFFIX);
+            this.indexPath = directory.resolve(name + INDEX_SUFFIX);
+        }
+
+        void loadIndex() throws IOException {
+            if (!Files.exists(indexPath)) {
+                return;
+            }
+            ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+            while (entries.remaining() >= INDEX_ENTRY_BYTES) {
+                index.add(new long[] {entries.getLong(), entries.getInt()});
+            }
+        }
+
+        /**
+         * Finds the end of the valid data by scanning forward from the last indexed record.
+         * Returns the offset the next record in the log will get.
+         */
+        long scanToEnd() throws IOException {
+            long offset = baseOffset;
+            int position = 0;
+            if (!index.isEmpty()) {
+                long[] last = index.get(index.size() - 1);
+                offset = last[0];
+                position = (int) last[1];
+            }
+
+            try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.READ);
+                 Arena arena = Arena.ofConfined()) {
+                long size = channel.size();
+                ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena).asByteBuffer();
+                CRC32 crc = new CRC32();
+                while (position + RECORD_HEADER_BYTES <= size) {
+                    int length = map.getInt(position);
+                    if (length <= 0 || position + RECORD_HEADER_BYTES + (long) length > size) {
+                        break;
+                    }
+                    byte[] payload = new byte[length];
+                    map.get(position + RECORD_HEADER_BYTES, payload);
+                    crc.reset();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != map.getInt(position + 4)) {
+                        break;
+                    }
+                    position += RECORD_HEADER_BYTES + length;
+                    offset++;
+                }
+            }
+
+            endPosition = position;
+            // Drop index entries past a torn tail so they never point at garbage
+            if (index.removeIf(entry -> entry[1] >= endPosition)) {
+                try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.WRITE)) {
+                    channel.truncate((long) index.size() * INDEX_ENTRY_BYTES);
+                }
+            }
+            lastIndexedPosition = index.isEmpty() ? 0 : (int) index.get(index.size() - 1)[1];
+            return offset;
+        }
+
+        /**
+         * Largest indexed record position that is at or before {@code position}.
+         */
+        int indexPositionAtOrBefore(int position) {
+            int found = 0;
+            for (long[] entry : index) {
+                if (entry[1] > position) {
+                    break;
+                }
+                found = (int) entry[1];
+            }
+            return found;
+        }
+    }
+}
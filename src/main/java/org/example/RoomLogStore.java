@@ -0,0 +1,195 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Owns the on-disk room logs and the single writer thread that appends to them.
+ *
+ * <p>Appends are queued and written in batches; after each batch every touched log is
+ * fsynced once (group commit). Messages therefore reach the disk shortly after they are
+ * sent, and a crash loses at most the batch that was being written.
+ */
+public class RoomLogStore {
+    private static final int SEGMENT_BYTES = Integer.getInteger("chat.log.segmentBytes", 16 * 1024 * 1024);
+    private static final int RETAIN_SEGMENTS = Integer.getInteger("chat.log.retainSegments", 8);
+    private static final long RETENTION_HOURS = Long.getLong("chat.log.retentionHours", 0);
+    private static final int MAX_BATCH = 4096;
+    private static final PendingAppend SHUTDOWN = new PendingAppend(null, null, 0);
+
+    private final Path directory;
+    private final BlockingQueue<PendingAppend> pending = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+    // Logs of evicted rooms that the writer has not closed yet; reopening one waits for that
+    private final Map<String, CompletableFuture<Void>> closing = new ConcurrentHashMap<>();
+
+    private final AtomicLong appendedRecords = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+
+    public RoomLogStore(String directory) throws IOException {
+        this.directory = Paths.get(directory);
+        Files.createDirectories(this.directory);
+        this.writer = Thread.ofPlatform().name("room-log-writer").daemon(true).start(this::writeLoop);
+    }
+
+    /**
+     * Opens (creating if needed) the log of a room and recovers its segments.
+     */
+    public RoomLog open(String roomName) throws IOException {
+        CompletableFuture<Void> closed = closing.get(roomName);
+        if (closed != null) {
+            closed.join();
+        }
+        Path roomDirectory = directory.resolve(HexFormat.of().formatHex(roomName.getBytes(StandardCharsets.UTF_8)));
+        return new RoomLog(this, roomName, roomDirectory, SEGMENT_BYTES, RETAIN_SEGMENTS, RETENTION_HOURS * 3600 * 1000);
+    }
+
+    /**
+     * Names of all rooms that have a log on disk.
+     */
+    public List<String> listRooms() throws IOException {
+        List<String> rooms = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path entry : entries) {
+                try {
+                    byte[] name = HexFormat.of().parseHex(entry.getFileName().toString());
+                    rooms.add(new String(name, StandardCharsets.UTF_8));
+                } catch (IllegalArgumentException e) {
+                    Log.warn("Skipping unexpected entry in room log directory: {}", entry);
+                }
+            }
+        }
+        return rooms;
+    }
+
+    public long getAppendedRecords() {
+        return appendedRecords.get();
+    }
+
+    public long getCommits() {
+        return commits.get();
+    }
+
+    public int getPendingAppends() {
+        return pending.size();
+    }
+
+    void submit(RoomLog log, byte[] payload, long timestamp) {
+        if (!running) {
+            return;
+        }
+        pending.add(new PendingAppend(log, payload, timestamp));
+    }
+
+    /**
+     * Queues a log to be closed after the appends queued before it. A log that was never written
+     * to is deleted, so rooms that were only joined do not come back after a restart.
+     */
+    void retire(RoomLog log) {
+        closing.put(log.getRoomName(), log.getClosed());
+        if (!running) {
+            closed(log);
+            return;
+        }
+        pending.add(new PendingAppend(log, null, 0));
+    }
+
+    /**
+     * Stops accepting appends, writes out what is queued and fsyncs every log.
+     */
+    public void close() {
+        running = false;
+        pending.add(SHUTDOWN);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<PendingAppend> batch = new ArrayList<>(MAX_BATCH);
+        Set<RoomLog> touched = new LinkedHashSet<>();
+        boolean shutdown = false;
+        while (!shutdown) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            pending.drainTo(batch, MAX_BATCH - 1);
+
+            int appended = 0;
+            for (PendingAppend append : batch) {
+                if (append == SHUTDOWN) {
+                    shutdown = true;
+                    continue;
+                }
+                if (append.payload == null) {
+                    touched.remove(append.log);
+                    closeLog(append.log);
+                    continue;
+                }
+                appended++;
+                try {
+                    append.log.write(append.payload, append.timestamp);
+                    touched.add(append.log);
+                } catch (IOException e) {
+                    Log.error("Error writing log of room {}: {}", append.log.getRoomName(), e.getMessage());
+                }
+            }
+            appendedRecords.addAndGet(appended);
+
+            for (RoomLog log : touched) {
+                try {
+                    log.flush();
+                } catch (IOException e) {
+                    Log.error("Error syncing log of room {}: {}", log.getRoomName(), e.getMessage());
+                }
+            }
+            if (!touched.isEmpty()) {
+                commits.incrementAndGet();
+            }
+            batch.clear();
+            touched.clear();
+        }
+    }
+
+    private void closeLog(RoomLog log) {
+        try {
+            log.close();
+            if (log.isEmpty()) {
+                Files.deleteIfExists(log.getDirectory());
+            }
+        } catch (IOException e) {
+            Log.warn("Error closing log of room {}: {}", log.getRoomName(), e.getMessage());
+        }
+        closed(log);
+    }
+
+    private void closed(RoomLog log) {
+        closing.remove(log.getRoomName(), log.getClosed());
+        log.getClosed().complete(null);
+    }
+
+    // A null payload closes the log
+    private record PendingAppend(RoomLog log, byte[] payload, long timestamp) {
+    }
+}
@@ -0,0 +1,65 @@
+package org.example;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Membership of a room. Joins and leaves are lock-free updates of a concurrent set;
+ * readers get an immutable snapshot that is only rebuilt after membership changed, so
+ * broadcasts never block (or get blocked by) clients coming and going.
+ */
+public class RoomMembers {
+    private final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(new Snapshot(0, List.of()));
+
+    public boolean add(ClientHandler client) {
+        if (members.add(client)) {
+            version.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public boolean remove(ClientHandler client) {
+        if (members.remove(client)) {
+            version.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public boolean contains(ClientHandler client) {
+        return members.contains(client);
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    /**
+     * Returns an immutable list holding at least every member whose join completed before
+     * this call. The list is shared between callers until the next membership change.
+     */
+    public List<ClientHandler> snapshot() {
+        Snapshot current = snapshot.get();
+        // Read the version before copying: the copy then contains every change it accounts for
+        long currentVersion = version.get();
+        if (current.version == currentVersion) {
+            return current.clients;
+        }
+
+        List<ClientHandler> clients = List.copyOf(members);
+        Snapshot updated = new Snapshot(currentVersion, clients);
+        while (current.version < currentVersion && !snapshot.compareAndSet(current, updated)) {
+            current = snapshot.get();
+        }
+        return clients;
+    }
+
+    private record Snapshot(long version, List<ClientHandler> clients) {
+    }
+}
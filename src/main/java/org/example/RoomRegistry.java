@@ -0,0 +1,217 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+
+/**
+ * The chat rooms of this server, shared by all clients and the cluster node.
+ *
+ * <p>Rooms are created the first time they are used and counted: a room's members and anyone
+ * holding it through {@link #acquire} keep it alive. Once nobody has held a room for
+ * {@code chat.rooms.idleSeconds} (default 300, 0 keeps rooms forever) it is evicted; its log
+ * stays on disk and joining it again brings its history back. Rooms that go idle are queued for
+ * the evictor, so it never scans the rooms that are in use.
+ *
+ * <p>Lookups go through a {@link ConcurrentHashMap}; the names are also kept sorted so LIST can
+ * page through them without copying or locking the registry. The names also include rooms
+ * that only have a log on disk, found at startup or left by eviction; they are loaded when
+ * first acquired.
+ *
+ * <p>A room is built outside the map, so no file is touched while a map bin is locked; if two
+ * threads build the same room the loser's is dropped, which is cheap since a room opens its log
+ * only once it is in the map and acquired.
+ */
+public class RoomRegistry {
+    private static final long IDLE_TIMEOUT_MILLIS = Long.getLong("chat.rooms.idleSeconds", 300) * 1000;
+    private static final long EVICTION_INTERVAL_MILLIS = Math.max(100, Math.min(IDLE_TIMEOUT_MILLIS, 1000));
+
+    private final Map<String, DefaultRoom> rooms = new ConcurrentHashMap<>();
+    // Every room in the map, plus the evicted or not yet loaded ones that have a log
+    private final NavigableSet<String> names = new ConcurrentSkipListSet<>();
+    private final Queue<DefaultRoom> idleRooms = new ConcurrentLinkedQueue<>();
+    private final Function<String, DefaultRoom> factory;
+
+    public RoomRegistry(Function<String, DefaultRoom> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Adds the client to the named room, creating the room if needed.
+     */
+    public DefaultRoom join(String roomName, ClientHandler client) {
+        DefaultRoom room = acquire(roomName);
+        try {
+            room.addClient(client);
+        } finally {
+            release(room);
+        }
+        return room;
+    }
+
+    /**
+     * Returns the named room, creating it if needed, and keeps it from being evicted until
+     * {@link #release} is called.
+     */
+    public DefaultRoom acquire(String roomName) {
+        while (true) {
+            DefaultRoom room = rooms.get(roomName);
+            if (room == null) {
+                DefaultRoom created = factory.apply(roomName);
+                created.setRegistry(this);
+                room = rooms.putIfAbsent(roomName, created);
+                if (room == null) {
+                    room = created;
+                    names.add(roomName);
+                    roomIdle(room);
+                }
+            }
+            if (room.acquire()) {
+                room.open();
+                return room;
+            }
+            // Evicted between lookup and acquire; once its entry is gone, one is created afresh
+            room.awaitRetired();
+        }
+    }
+
+    public void release(DefaultRoom room) {
+        room.release();
+    }
+
+    /**
+     * Adds an existing room; it is evicted if nobody joins it.
+     */
+    public void add(DefaultRoom room) {
+        room.setRegistry(this);
+        if (rooms.putIfAbsent(room.getRoomName(), room) == null) {
+            names.add(room.getRoomName());
+            roomIdle(room);
+        }
+    }
+
+    /**
+     * Lists rooms that exist only on disk, such as those found at startup, or only on other
+     * cluster nodes, without loading them.
+     */
+    public void addNames(Collection<String> roomNames) {
+        names.addAll(roomNames);
+    }
+
+    public DefaultRoom get(String roomName) {
+        return rooms.get(roomName);
+    }
+
+    public boolean isEmpty() {
+        return rooms.isEmpty();
+    }
+
+    public int size() {
+        return rooms.size();
+    }
+
+    public Collection<DefaultRoom> getRooms() {
+        return rooms.values();
+    }
+
+    /**
+     * Room names in order, live: names added or removed while iterating may or may not show up.
+     */
+    public Collection<String> getNames() {
+        return names;
+    }
+
+    /**
+     * Up to {@code limit} names starting with {@code prefix}, in order, after skipping the first
+     * {@code skip} of them.
+     */
+    public List<String> list(String prefix, int skip, int limit) {
+        List<String> page = new ArrayList<>(Math.min(limit, 64));
+        int skipped = 0;
+        for (String roomName : names.tailSet(prefix, true)) {
+            if (!roomName.startsWith(prefix) || page.size() == limit) {
+                break;
+            }
+            if (skipped < skip) {
+                skipped++;
+            } else {
+                page.add(roomName);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Starts the background thread that evicts idle rooms, unless eviction is turned off.
+     */
+    public void startEvictor() {
+        if (IDLE_TIMEOUT_MILLIS <= 0) {
+            return;
+        }
+        Thread.startVirtualThread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(EVICTION_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                evictIdleRooms(System.currentTimeMillis());
+            }
+        });
+    }
+
+    /**
+     * Evicts the queued rooms that have been idle for the timeout. The queue is in the order
+     * rooms first went idle, so a room that was used again in between may hold up the ones
+     * behind it; they are evicted at most one timeout late.
+     */
+    int evictIdleRooms(long now) {
+        int evicted = 0;
+        DefaultRoom room;
+        while ((room = idleRooms.peek()) != null && now - room.getIdleSince() >= IDLE_TIMEOUT_MILLIS) {
+            idleRooms.poll();
+            room.setEvictionQueued(false);
+            if (room.retire(now, IDLE_TIMEOUT_MILLIS)) {
+                remove(room);
+                evicted++;
+            } else {
+                // In use again; if it went idle after we unqueued it, nobody else queued it
+                roomIdle(room);
+            }
+        }
+        if (evicted > 0) {
+            Log.debug("Evicted {} idle rooms, {} left", evicted, rooms.size());
+        }
+        return evicted;
+    }
+
+    /**
+     * Called by a room whose last reference was released.
+     */
+    void roomIdle(DefaultRoom room) {
+        if (IDLE_TIMEOUT_MILLIS > 0 && room.isIdle() && room.setEvictionQueued(true)) {
+            idleRooms.add(room);
+        }
+    }
+
+    private void remove(DefaultRoom room) {
+        rooms.computeIfPresent(room.getRoomName(), (roomName, current) -> {
+            if (current != room) {
+                return current;
+            }
+            if (!room.hasLoggedMessages()) {
+                names.remove(roomName);
+            }
+            return null;
+        });
+        room.retired();
+    }
+}
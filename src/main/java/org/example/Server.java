@@ -2,115 +2,191 @@ package org.example;
 
 import javax.net.ssl.*;
 import java.io.*;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.security.GeneralSecurityException;
+import javax.management.JMException;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 
 public class Server {
-    private static TokenManager tokenManager = new TokenManager();
-    private static final Map<String, ClientHandler> userSessions = new HashMap<>();
-    private static final Lock userSessionLock = new ReentrantLock();
+    private static final int NIO_THREADS = Integer.getInteger("chat.nio.threads", Runtime.getRuntime().availableProcessors());
+    private static final boolean ROOM_LOG_ENABLED = Boolean.parseBoolean(System.getProperty("chat.log.enabled", "true"));
+    private static final String ROOM_LOG_DIRECTORY = System.getProperty("chat.log.dir", "./doc/rooms");
+    private static final String CREDENTIALS_LOG = "./doc/users.txt";
+    private static final String CREDENTIALS_SNAPSHOT = "./doc/users.snapshot";
+    private static final String CLUSTER_SELF = System.getProperty("chat.cluster.self");
+    private static final String CLUSTER_NODES = System.getProperty("chat.cluster.nodes", "");
+    private static final String LLM_HOST = System.getProperty("chat.llm.host", "http://localhost:11434");
+
+    private static final boolean SIGNED_TOKENS = Boolean.getBoolean("chat.tokens.signed");
+    private static final String TOKEN_KEY_FILE = System.getProperty("chat.tokens.keyFile", "./doc/token.key");
+    private static final Set<String> ADMINS = Set.copyOf(Arrays.asList(System.getProperty("chat.admins", "").split(",")));
+
+    private static TokenManager tokenManager;
+    private static final PasswordHasher passwordHasher = PasswordHasher.createDefault();
+    private static final LoginRateLimiter loginRateLimiter = LoginRateLimiter.createDefault();
+    private static RoomLogStore roomLogStore;
+    private static ClusterNode cluster;
+    private static ServerMetrics metrics;
+    private static final LLMRoomRegistry llmRooms = new LLMRoomRegistry(LLM_HOST);
+    private static final AtomicInteger lastRoomId = new AtomicInteger();
 
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: java org.example.Server <port>");
+        if (args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].equals("blocking") && !args[1].equals("nio"))) {
+            System.out.println("Usage: java org.example.Server <port> [blocking|nio]");
             return;
         }
 
         int port = Integer.parseInt(args[0]);
+        boolean nio = args.length == 2 && args[1].equals("nio");
 
         try {
-            System.setProperty("javax.net.ssl.keyStore", "keystore.jks");
-            System.setProperty("javax.net.ssl.keyStorePassword", "cpdg16");
-
-            SSLServerSocketFactory sslServerSocketFactory = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
-            SSLServerSocket serverSocket = (SSLServerSocket) sslServerSocketFactory.createServerSocket(port);
-
-            serverSocket.setEnabledProtocols(new String[] {"TLSv1.3", "TLSv1.2"});
-
-            System.out.println("Secure server listening on port " + port);
-
-            // Initialize roomMap, activeClients, and credentials
-            Map<String, DefaultRoom> roomMap = new HashMap<>();
-            List<ClientHandler> activeClients = new ArrayList<>();
-            Map<String, String> credentials = loadCredentials();
-
-            while (true) {
-                SSLSocket clientSocket = (SSLSocket) serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket.getInetAddress());
-                Thread.startVirtualThread(() -> new ClientHandler(clientSocket, credentials, roomMap, activeClients).run());
-                Thread.startVirtualThread(() -> {
-                    while (true) {
-                        try {
-                            Thread.sleep(360000);
-                            tokenManager.cleanExpiredTokens();
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            break;
-                        }
-                    }
-                });
+            SSLContext sslContext = TlsContexts.createServerContext();
+            tokenManager = SIGNED_TOKENS ? new TokenManager(TokenSigner.fromKeyFile(TOKEN_KEY_FILE)) : new TokenManager();
+
+            // Initialize rooms, sessions, and credentials
+            RoomRegistry rooms = new RoomRegistry(Server::createRoom);
+            SessionRegistry sessions = new SessionRegistry();
+            CredentialStore credentials = openCredentialStore();
+            if (ROOM_LOG_ENABLED) {
+                openRoomLogs(rooms);
             }
-        } catch (IOException e) {
-            System.out.println("Server error: " + e.getMessage());
-            e.printStackTrace();
+            rooms.startEvictor();
+            llmRooms.startEvictor();
+            startMetrics(rooms, sessions);
+            if (CLUSTER_SELF != null) {
+                cluster = new ClusterNode(CLUSTER_SELF, Arrays.asList(CLUSTER_NODES.split(",")), rooms);
+                cluster.start();
+            }
+
+            if (nio) {
+                runNio(port, sslContext, credentials, rooms, sessions);
+            } else {
+                runBlocking(port, sslContext, credentials, rooms, sessions);
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            Log.error("Server error: {}", e.getMessage(), e);
         }
     }
 
-
-    public static Map<String, String> loadCredentials() {
-        Map<String, String> credentials = new HashMap<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader("./doc/users.txt"))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(":");
-                if (parts.length == 2) {
-                    credentials.put(parts[0], parts[1]);
+    private static void runBlocking(int port, SSLContext sslContext, CredentialStore credentials,
+                                    RoomRegistry rooms, SessionRegistry sessions) throws IOException {
+        SSLServerSocketFactory sslServerSocketFactory = sslContext.getServerSocketFactory();
+        SSLServerSocket serverSocket = (SSLServerSocket) sslServerSocketFactory.createServerSocket(port);
+
+        serverSocket.setEnabledProtocols(TlsContexts.PROTOCOLS);
+
+        Log.info("Secure server listening on port {}", port);
+
+        while (true) {
+            SSLSocket clientSocket = (SSLSocket) serverSocket.accept();
+            clientSocket.setTcpNoDelay(true);
+            Log.info("New client connected: {}", clientSocket.getInetAddress());
+            Thread.startVirtualThread(() -> {
+                try {
+                    SocketConnection connection = new SocketConnection(clientSocket);
+                    new ClientHandler(connection, credentials, rooms, sessions).run(connection.getInputStream());
+                } catch (IOException e) {
+                    Log.warn("Failed to set up client connection: {}", e.getMessage());
                 }
-            }
-        } catch (FileNotFoundException e) {
-            System.out.println("users.txt file not found. No credentials loaded.");
-        } catch (IOException e) {
-            System.out.println("Error reading users.txt: " + e.getMessage());
+            });
         }
-        return credentials;
     }
 
-    public static TokenManager getTokenManager() {
-        return tokenManager;
+    private static void runNio(int port, SSLContext sslContext, CredentialStore credentials,
+                               RoomRegistry rooms, SessionRegistry sessions) throws IOException {
+        NioServer server = new NioServer(port, sslContext, NIO_THREADS,
+                connection -> new ClientHandler(connection, credentials, rooms, sessions));
+        server.run();
     }
 
-    public static void registerUserSession(String username, ClientHandler handler) {
-        userSessionLock.lock();
+
+    private static void startMetrics(RoomRegistry rooms, SessionRegistry sessions) {
+        metrics = new ServerMetrics(rooms, sessions);
+        metrics.startSampler();
         try {
-            userSessions.put(username, handler);
-        }
-        finally {
-            userSessionLock.unlock();
+            metrics.register();
+        } catch (JMException e) {
+            Log.warn("Metrics are not available over JMX: {}", e.getMessage());
         }
     }
 
-    public static ClientHandler getUserSession(String username) {
-        userSessionLock.lock();
-        try {
-            return userSessions.get(username);
-        } finally {
-            userSessionLock.unlock();
-        }
+    private static void openRoomLogs(RoomRegistry rooms) throws IOException {
+        roomLogStore = new RoomLogStore(ROOM_LOG_DIRECTORY);
+        Runtime.getRuntime().addShutdownHook(new Thread(roomLogStore::close));
+
+        List<String> roomNames = roomLogStore.listRooms();
+        rooms.addNames(roomNames);
+        Log.info("Found {} room logs in {}; each is opened when its room is first used", roomNames.size(),
+                ROOM_LOG_DIRECTORY);
     }
 
-    public static void removeUserSession(String username) {
-        userSessionLock.lock();
-        try {
-            userSessions.remove(username);
-        } finally {
-            userSessionLock.unlock();
-        }
+    /**
+     * Creates a room, backed by its on-disk log when room logging is enabled.
+     */
+    public static DefaultRoom createRoom(String roomName) {
+        return roomLogStore != null ? new DefaultRoom(roomName, roomLogStore) : new DefaultRoom(roomName);
+    }
+
+    /**
+     * Hands out room ids for binary frames; 0 is never used, it means "no room".
+     */
+    public static int nextRoomId() {
+        return lastRoomId.incrementAndGet();
+    }
+
+    /**
+     * This server's cluster node, or null when it runs alone.
+     */
+    public static ClusterNode getCluster() {
+        return cluster;
+    }
+
+    /**
+     * The metrics registry, or null when no server was started in this JVM.
+     */
+    public static ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Whether {@code username} is listed in {@code chat.admins} and may use STATS.
+     */
+    public static boolean isAdmin(String username) {
+        return username != null && !username.isEmpty() && ADMINS.contains(username);
+    }
+
+    public static RoomLogStore getRoomLogStore() {
+        return roomLogStore;
+    }
+
+    public static LLMRoomRegistry getLLMRooms() {
+        return llmRooms;
+    }
+
+    public static String getLLMHost() {
+        return LLM_HOST;
+    }
+
+    public static CredentialStore openCredentialStore() throws IOException {
+        CredentialStore store = new CredentialStore(CREDENTIALS_LOG, CREDENTIALS_SNAPSHOT);
+        Runtime.getRuntime().addShutdownHook(new Thread(store::close));
+        return store;
+    }
+
+    public static TokenManager getTokenManager() {
+        return tokenManager;
+    }
+
+    public static PasswordHasher getPasswordHasher() {
+        return passwordHasher;
+    }
+
+    public static LoginRateLimiter getLoginRateLimiter() {
+        return loginRateLimiter;
     }
 
 
@@ -0,0 +1,491 @@
+package org.example;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide counters and latency histograms, shown over JMX and by the STATS command.
+ *
+ * <p>Recording is static so every part of the server can do it without being handed the
+ * registry, and it never allocates: counters are {@link LongAdder}s, striped under contention,
+ * and histograms are {@link LatencyHistogram}s. Gauges such as queue depths are only computed
+ * when someone reads them.
+ *
+ * <p>Room message rates only cost anything for rooms that had messages: a room's {@link Rate}
+ * queues itself for the sampler on its first message after a quiet interval, the sampler drops
+ * it again after an interval without any, and only the busiest of them are kept for reading.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    private static final long SAMPLE_MILLIS = Long.getLong("chat.metrics.sampleSeconds", 10) * 1000;
+    private static final int MAX_REPORTED_ROOMS = 20;
+
+    private static final LongAdder connectionsOpened = new LongAdder();
+    private static final LongAdder connectionsClosed = new LongAdder();
+    private static final LongAdder logins = new LongAdder();
+    private static final LongAdder loginFailures = new LongAdder();
+    private static final LongAdder loginsThrottled = new LongAdder();
+    private static final LongAdder registrations = new LongAdder();
+    private static final LongAdder reconnects = new LongAdder();
+    private static final LongAdder reconnectFailures = new LongAdder();
+    private static final LatencyHistogram authLatency = new LatencyHistogram();
+    // Indexed by opcode; 0 counts unknown commands
+    private static final LongAdder[] commands = new LongAdder[WireProtocol.STATS + 1];
+    private static final LatencyHistogram fanOutLatency = new LatencyHistogram();
+    private static final LongAdder fanOutDeliveries = new LongAdder();
+    private static final LatencyHistogram llmFirstToken = new LatencyHistogram();
+    private static final LatencyHistogram llmTotal = new LatencyHistogram();
+    private static final LongAdder llmFailures = new LongAdder();
+    private static final LongAdder llmPromptsRejected = new LongAdder();
+    // Rates that became active since the sampler last ran
+    private static final Queue<Rate> activatedRates = new ConcurrentLinkedQueue<>();
+
+    static {
+        for (int i = 0; i < commands.length; i++) {
+            commands[i] = new LongAdder();
+        }
+    }
+
+    private final RoomRegistry rooms;
+    private final SessionRegistry sessions;
+    // Only used by the sampler thread
+    private final List<Rate> activeRates = new ArrayList<>();
+    private long lastSampleNanos = System.nanoTime();
+    private volatile Map<String, Double> busiestRooms = Map.of();
+
+    public ServerMetrics(RoomRegistry rooms, SessionRegistry sessions) {
+        this.rooms = rooms;
+        this.sessions = sessions;
+    }
+
+    public static void recordConnectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    public static void recordConnectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    /**
+     * A login or registration that was checked, successful or not, and how long that took.
+     */
+    public static void recordAuthentication(boolean success, long nanos) {
+        (success ? logins : loginFailures).increment();
+        authLatency.recordNanos(nanos);
+    }
+
+    public static void recordLoginThrottled() {
+        loginsThrottled.increment();
+    }
+
+    public static void recordRegistration() {
+        registrations.increment();
+    }
+
+    public static void recordReconnect(boolean success) {
+        (success ? reconnects : reconnectFailures).increment();
+    }
+
+    /**
+     * A command from a logged-in client, by opcode; anything that is not a command counts as 0.
+     */
+    public static void recordCommand(byte opcode) {
+        commands[opcode > 0 && opcode < commands.length ? opcode : 0].increment();
+    }
+
+    public static void recordFanOut(int recipients, long nanos) {
+        fanOutDeliveries.add(recipients);
+        fanOutLatency.recordNanos(nanos);
+    }
+
+    /**
+     * A completed LLM reply; {@code firstTokenMillis} is -1 if nothing was streamed.
+     */
+    public static void recordLlmReply(long firstTokenMillis, long totalMillis) {
+        if (firstTokenMillis >= 0) {
+            llmFirstToken.record(firstTokenMillis * 1000);
+        }
+        llmTotal.record(totalMillis * 1000);
+    }
+
+    public static void recordLlmFailure() {
+        llmFailures.increment();
+    }
+
+    /**
+     * A prompt turned away because its LLM room already had a full queue.
+     */
+    public static void recordLlmPromptRejected() {
+        llmPromptsRejected.increment();
+    }
+
+    /**
+     * Registers this registry with the platform MBean server.
+     */
+    public void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("org.example:type=ChatServer"));
+    }
+
+    /**
+     * Starts the background thread that turns the active rooms' message counts into rates.
+     */
+    public void startSampler() {
+        Thread.startVirtualThread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(SAMPLE_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                sampleRates(System.nanoTime());
+            }
+        });
+    }
+
+    void sampleRates(long now) {
+        Rate activated;
+        while ((activated = activatedRates.poll()) != null) {
+            // Its messages all came after the last sample, which found it quiet or did not know it yet
+            activated.activate(lastSampleNanos);
+            activeRates.add(activated);
+        }
+        activeRates.removeIf(rate -> !rate.sample(now));
+        lastSampleNanos = now;
+
+        PriorityQueue<Rate> busiest = new PriorityQueue<>(MAX_REPORTED_ROOMS + 1,
+                Comparator.comparingDouble(Rate::getPerSecond));
+        for (Rate rate : activeRates) {
+            busiest.add(rate);
+            if (busiest.size() > MAX_REPORTED_ROOMS) {
+                busiest.poll();
+            }
+        }
+        List<Rate> sorted = new ArrayList<>(busiest);
+        sorted.sort(Comparator.comparingDouble(Rate::getPerSecond).reversed());
+        Map<String, Double> rates = new LinkedHashMap<>();
+        for (Rate rate : sorted) {
+            rates.put(rate.getName(), rate.getPerSecond());
+        }
+        busiestRooms = Collections.unmodifiableMap(rates);
+    }
+
+    /**
+     * The metrics as lines of text, for the STATS command.
+     */
+    public List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Connections: " + getOpenConnections() + " open, " + getConnectionsOpened() + " since start, "
+                + getSessions() + " logged in; " + getRooms() + " rooms");
+        lines.add("Logins: " + getLogins() + " ok, " + getLoginFailures() + " failed, " + getLoginsThrottled()
+                + " throttled, " + getRegistrations() + " registrations; reconnects " + getReconnects() + " ok, "
+                + getReconnectFailures() + " failed");
+        lines.add("Login latency: " + authLatency.summary());
+
+        StringBuilder counts = new StringBuilder("Commands:");
+        for (Map.Entry<String, Long> entry : getCommandCounts().entrySet()) {
+            counts.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        lines.add(counts.toString());
+
+        lines.add("Fan-out: " + fanOutLatency.summary() + ", " + getFanOutDeliveries() + " deliveries");
+        lines.add("Outbound: " + getOutboundQueued() + " queued, deepest queue " + getOutboundDeepestQueue() + ", "
+                + getOutboundDropped() + " dropped, " + getMessagesWritten() + " messages and "
+                + getBytesWritten() + " bytes written in " + getTransportWrites() + " writes");
+        lines.add("LLM first token: " + llmFirstToken.summary());
+        lines.add("LLM reply: " + llmTotal.summary() + ", " + getLlmFailures() + " failed");
+        lines.add("LLM prompts: " + getLlmRooms() + " rooms, " + getLlmPromptsQueued() + " queued, "
+                + getLlmPromptsInFlight() + " in flight, " + getLlmPromptsRejected() + " rejected");
+        lines.add("Model catalog: " + getModelCatalogHits() + " hits, " + getModelCatalogStaleHits() + " stale, "
+                + getModelCatalogMisses() + " misses; " + getModelCatalogFetches() + " fetches, "
+                + getModelCatalogFetchFailures() + " failed");
+        lines.add("Tokens: " + getTokens() + "; log records dropped: " + getLogDropped());
+
+        lines.add("Busiest rooms (messages/s over " + SAMPLE_MILLIS / 1000 + " s):");
+        for (Map.Entry<String, Double> rate : getRoomMessageRates().entrySet()) {
+            lines.add(String.format("- %s %.1f", rate.getKey(), rate.getValue()));
+        }
+        return lines;
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public long getOpenConnections() {
+        return connectionsOpened.sum() - connectionsClosed.sum();
+    }
+
+    @Override
+    public int getSessions() {
+        return sessions.size();
+    }
+
+    @Override
+    public int getRooms() {
+        return rooms.size();
+    }
+
+    @Override
+    public long getLogins() {
+        return logins.sum();
+    }
+
+    @Override
+    public long getLoginFailures() {
+        return loginFailures.sum();
+    }
+
+    @Override
+    public long getLoginsThrottled() {
+        return loginsThrottled.sum();
+    }
+
+    @Override
+    public long getRegistrations() {
+        return registrations.sum();
+    }
+
+    @Override
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    @Override
+    public long getReconnectFailures() {
+        return reconnectFailures.sum();
+    }
+
+    @Override
+    public Latency getAuthLatency() {
+        return Latency.of(authLatency);
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int i = 1; i < commands.length; i++) {
+            long count = commands[i].sum();
+            if (count > 0) {
+                counts.put(WireProtocol.commandName((byte) i), count);
+            }
+        }
+        if (commands[0].sum() > 0) {
+            counts.put(WireProtocol.commandName((byte) 0), commands[0].sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public Latency getFanOutLatency() {
+        return Latency.of(fanOutLatency);
+    }
+
+    @Override
+    public long getFanOutDeliveries() {
+        return fanOutDeliveries.sum();
+    }
+
+    @Override
+    public Map<String, Double> getRoomMessageRates() {
+        return busiestRooms;
+    }
+
+    @Override
+    public long getOutboundQueued() {
+        long queued = 0;
+        for (ClientHandler session : sessions.getSessions()) {
+            queued += session.getOutboundQueueDepth();
+        }
+        return queued;
+    }
+
+    @Override
+    public int getOutboundDeepestQueue() {
+        int deepest = 0;
+        for (ClientHandler session : sessions.getSessions()) {
+            deepest = Math.max(deepest, session.getOutboundQueueDepth());
+        }
+        return deepest;
+    }
+
+    @Override
+    public long getOutboundDropped() {
+        long dropped = 0;
+        for (ClientHandler session : sessions.getSessions()) {
+            dropped += session.getOutboundDroppedCount();
+        }
+        return dropped;
+    }
+
+    @Override
+    public long getMessagesWritten() {
+        return ClientHandler.getMessagesWritten();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return ClientHandler.getBytesWritten();
+    }
+
+    @Override
+    public long getTransportWrites() {
+        return ClientHandler.getTransportWrites();
+    }
+
+    @Override
+    public Latency getLlmFirstTokenLatency() {
+        return Latency.of(llmFirstToken);
+    }
+
+    @Override
+    public Latency getLlmTotalLatency() {
+        return Latency.of(llmTotal);
+    }
+
+    @Override
+    public long getLlmFailures() {
+        return llmFailures.sum();
+    }
+
+    @Override
+    public int getLlmRooms() {
+        return Server.getLLMRooms().size();
+    }
+
+    @Override
+    public int getLlmPromptsQueued() {
+        int queued = 0;
+        for (LLMRoom room : Server.getLLMRooms().getRooms()) {
+            queued += room.getQueueDepth();
+        }
+        return queued;
+    }
+
+    @Override
+    public int getLlmPromptsInFlight() {
+        int inFlight = 0;
+        for (LLMRoom room : Server.getLLMRooms().getRooms()) {
+            inFlight += room.getInFlightCount();
+        }
+        return inFlight;
+    }
+
+    @Override
+    public long getLlmPromptsRejected() {
+        return llmPromptsRejected.sum();
+    }
+
+    @Override
+    public long getModelCatalogHits() {
+        return catalog().getHitCount();
+    }
+
+    @Override
+    public long getModelCatalogStaleHits() {
+        return catalog().getStaleHitCount();
+    }
+
+    @Override
+    public long getModelCatalogMisses() {
+        return catalog().getMissCount();
+    }
+
+    @Override
+    public long getModelCatalogFetches() {
+        return catalog().getFetchCount();
+    }
+
+    @Override
+    public long getModelCatalogFetchFailures() {
+        return catalog().getFetchFailureCount();
+    }
+
+    @Override
+    public int getTokens() {
+        TokenManager tokens = Server.getTokenManager();
+        return tokens == null ? 0 : tokens.size();
+    }
+
+    @Override
+    public long getLogDropped() {
+        return Log.getDropped();
+    }
+
+    private static ModelCatalog catalog() {
+        return LLMService.getCatalog(Server.getLLMHost());
+    }
+
+    /**
+     * Counts events and, each time it is sampled, works out their rate since the last sample.
+     * It is only sampled while events keep coming.
+     */
+    public static class Rate {
+        private final String name;
+        private final LongAdder count = new LongAdder();
+        private final AtomicBoolean active = new AtomicBoolean();
+        private long lastCount;
+        private long lastNanos = System.nanoTime();
+        private volatile double perSecond;
+
+        public Rate(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void mark() {
+            count.increment();
+            if (!active.get() && active.compareAndSet(false, true)) {
+                activatedRates.add(this);
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getPerSecond() {
+            return perSecond;
+        }
+
+        /**
+         * Only called by the sampler thread, when it picks up a newly active rate.
+         */
+        void activate(long sinceNanos) {
+            lastNanos = Math.max(lastNanos, sinceNanos);
+        }
+
+        /**
+         * Only called by the sampler thread. Returns false once there were no events since
+         * the last sample; the next event queues the rate again.
+         */
+        boolean sample(long now) {
+            long current = count.sum();
+            perSecond = now > lastNanos ? (current - lastCount) * 1e9 / (now - lastNanos) : 0;
+            lastNanos = now;
+            if (current != lastCount) {
+                lastCount = current;
+                return true;
+            }
+            active.set(false);
+            // An event between the sum and the reset saw the rate still active and did not queue it
+            return count.sum() != current && active.compareAndSet(false, true);
+        }
+    }
+}
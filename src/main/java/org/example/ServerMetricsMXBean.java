@@ -0,0 +1,169 @@
+package org.example;
+
+import javax.management.ConstructorParameters;
+import java.util.Map;
+
+/**
+ * What {@link ServerMetrics} shows over JMX, as {@code org.example:type=ChatServer}.
+ */
+public interface ServerMetricsMXBean {
+
+    long getConnectionsOpened();
+
+    long getOpenConnections();
+
+    int getSessions();
+
+    int getRooms();
+
+    long getLogins();
+
+    long getLoginFailures();
+
+    /**
+     * Login and registration attempts turned away unchecked by the rate limiter or a full queue.
+     */
+    long getLoginsThrottled();
+
+    long getRegistrations();
+
+    long getReconnects();
+
+    long getReconnectFailures();
+
+    /**
+     * Time to check a login or registration, including waiting for a password hashing thread.
+     */
+    Latency getAuthLatency();
+
+    /**
+     * Commands received so far, by name.
+     */
+    Map<String, Long> getCommandCounts();
+
+    /**
+     * Time to hand a room message to every member's outbound queue.
+     */
+    Latency getFanOutLatency();
+
+    long getFanOutDeliveries();
+
+    /**
+     * Messages per second in the busiest chat rooms (up to 20), over the last sampling interval,
+     * busiest first. Rooms without messages in the interval are left out.
+     */
+    Map<String, Double> getRoomMessageRates();
+
+    /**
+     * Messages waiting in all outbound queues together.
+     */
+    long getOutboundQueued();
+
+    int getOutboundDeepestQueue();
+
+    long getOutboundDropped();
+
+    long getMessagesWritten();
+
+    long getBytesWritten();
+
+    /**
+     * Batched writes to client connections; messages written divided by this is the batching factor.
+     */
+    long getTransportWrites();
+
+    Latency getLlmFirstTokenLatency();
+
+    Latency getLlmTotalLatency();
+
+    long getLlmFailures();
+
+    int getLlmRooms();
+
+    /**
+     * Prompts waiting in LLM rooms for the one before them to be answered.
+     */
+    int getLlmPromptsQueued();
+
+    int getLlmPromptsInFlight();
+
+    /**
+     * Prompts turned away because their room's queue was full.
+     */
+    long getLlmPromptsRejected();
+
+    /**
+     * Model lists served from the cache while it was fresh.
+     */
+    long getModelCatalogHits();
+
+    /**
+     * Model lists served from an expired cache while a background fetch refreshed it.
+     */
+    long getModelCatalogStaleHits();
+
+    /**
+     * Lookups that had to wait for the model list to be fetched.
+     */
+    long getModelCatalogMisses();
+
+    long getModelCatalogFetches();
+
+    long getModelCatalogFetchFailures();
+
+    /**
+     * Tokens the token manager holds: live tokens, or revoked ones when tokens are signed.
+     */
+    int getTokens();
+
+    /**
+     * Log records dropped because the logger's buffer was full.
+     */
+    long getLogDropped();
+
+    /**
+     * Percentiles of a {@link LatencyHistogram}, in milliseconds.
+     */
+    final class Latency {
+        private final long count;
+        private final double p50Millis;
+        private final double p99Millis;
+        private final double p999Millis;
+        private final double maxMillis;
+
+        @ConstructorParameters({"count", "p50Millis", "p99Millis", "p999Millis", "maxMillis"})
+        public Latency(long count, double p50Millis, double p99Millis, double p999Millis, double maxMillis) {
+            this.count = count;
+            this.p50Millis = p50Millis;
+            this.p99Millis = p99Millis;
+            this.p999Millis = p999Millis;
+            this.maxMillis = maxMillis;
+        }
+
+        static Latency of(LatencyHistogram histogram) {
+            return new Latency(histogram.getCount(), histogram.getPercentileMicros(50) / 1000.0,
+                    histogram.getPercentileMicros(99) / 1000.0, histogram.getPercentileMicros(99.9) / 1000.0,
+                    histogram.getMaxMicros() / 1000.0);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        public double getP999Millis() {
+            return p999Millis;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.example;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The one place that knows which handler serves which logged-in user.
+ *
+ * <p>Every operation is a single atomic step on a concurrent map: a login {@link #claim claims}
+ * a free username, a reconnect {@link #handover takes over} whatever session is there, and a
+ * handler only {@link #release releases} the entry if it is still its own.
+ */
+public class SessionRegistry {
+    private final Map<String, ClientHandler> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the handler for a user that is not logged in yet.
+     *
+     * @return false if the user already has a session
+     */
+    public boolean claim(String username, ClientHandler handler) {
+        return sessions.putIfAbsent(username, handler) == null;
+    }
+
+    /**
+     * Makes the handler the user's session, returning the one it replaced, if any.
+     */
+    public ClientHandler handover(String username, ClientHandler handler) {
+        return sessions.put(username, handler);
+    }
+
+    /**
+     * Removes the user's session if it still belongs to {@code handler}; a session that was
+     * already handed over to a newer connection is left alone.
+     */
+    public boolean release(String username, ClientHandler handler) {
+        return username != null && sessions.remove(username, handler);
+    }
+
+    public ClientHandler get(String username) {
+        return sessions.get(username);
+    }
+
+    public boolean isOnline(String username) {
+        return sessions.containsKey(username);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Live, unmodifiable view of all sessions. Iterating it takes no lock and never throws
+     * ConcurrentModificationException; it sees sessions as they come and go.
+     */
+    public Collection<ClientHandler> getSessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+}
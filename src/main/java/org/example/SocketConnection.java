@@ -0,0 +1,43 @@
+package org.example;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+public class SocketConnection implements ClientConnection {
+    private static final int READ_TIMEOUT_MILLIS = 120000;
+
+    private final Socket socket;
+
+    public SocketConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+        if (socket instanceof SSLSocket sslSocket) {
+            // Finish the handshake up front so the reader and writer threads never race to start it
+            sslSocket.startHandshake();
+        }
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    public InetAddress getInetAddress() {
+        return socket.getInetAddress();
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,98 @@
+package org.example;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * Builds the TLS contexts of the server and the client explicitly instead of relying on the
+ * JVM-wide defaults, so session resumption can be tuned.
+ *
+ * <p>A reconnecting client that offers a session it already has skips the certificate
+ * exchange and signature: on TLS 1.3 through a session ticket (the server keeps no state for
+ * it), on TLS 1.2 through the server's session cache. Both caches keep sessions for
+ * {@code chat.tls.sessionTimeoutSeconds}. Load this class before any other TLS code runs, so
+ * the ticket settings below are seen by the JDK.
+ */
+public final class TlsContexts {
+    public static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+
+    private static final String KEY_STORE = System.getProperty("chat.tls.keyStore", "keystore.jks");
+    private static final String TRUST_STORE = System.getProperty("chat.tls.trustStore", "truststore.jks");
+    private static final String STORE_PASSWORD = System.getProperty("chat.tls.storePassword", "cpdg16");
+    private static final int SESSION_CACHE_SIZE = Integer.getInteger("chat.tls.sessionCacheSize", 50000);
+    private static final int SESSION_TIMEOUT_SECONDS = Integer.getInteger("chat.tls.sessionTimeoutSeconds", 3600);
+
+    static {
+        // Already the default on current JDKs; set so an older default or a stray flag cannot turn them off
+        setIfAbsent("jdk.tls.server.enableSessionTicketExtension", "true");
+        setIfAbsent("jdk.tls.client.enableSessionTicketExtension", "true");
+    }
+
+    private TlsContexts() {
+    }
+
+    public static SSLContext createServerContext() throws IOException, GeneralSecurityException {
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(loadKeyStore(KEY_STORE), STORE_PASSWORD.toCharArray());
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        configureSessions(context.getServerSessionContext());
+        return context;
+    }
+
+    /**
+     * Sessions are cached per context, so a client must make all its connections through one
+     * context for them to be resumed.
+     */
+    public static SSLContext createClientContext() throws IOException, GeneralSecurityException {
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(loadKeyStore(TRUST_STORE));
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagers.getTrustManagers(), null);
+        configureSessions(context.getClientSessionContext());
+        return context;
+    }
+
+    /**
+     * Opens a client connection and completes its handshake, resuming a cached session of
+     * {@code factory}'s context if there is one.
+     */
+    public static SSLSocket connect(SSLSocketFactory factory, String host, int port) throws IOException {
+        SSLSocket socket = (SSLSocket) factory.createSocket(host, port);
+        // Without it, the handshake's last small write waits for the server's delayed ACK
+        socket.setTcpNoDelay(true);
+        socket.setEnabledProtocols(PROTOCOLS);
+        socket.startHandshake();
+        return socket;
+    }
+
+    private static void configureSessions(SSLSessionContext sessions) {
+        sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+    }
+
+    private static KeyStore loadKeyStore(String path) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (InputStream in = new FileInputStream(path)) {
+            store.load(in, STORE_PASSWORD.toCharArray());
+        }
+        return store;
+    }
+
+    private static void setIfAbsent(String property, String value) {
+        if (System.getProperty(property) == null) {
+            System.setProperty(property, value);
+        }
+    }
+}
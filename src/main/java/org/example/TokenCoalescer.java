@@ -0,0 +1,67 @@
+package org.example;
+
+import java.util.function.Consumer;
+
+/**
+ * Groups streamed LLM tokens into line-sized frames: a frame is emitted at every newline,
+ * once enough text has piled up, or when the last frame is getting old, always breaking
+ * on whitespace so words are never split across frames.
+ */
+public class TokenCoalescer {
+    private final Consumer<String> frameSink;
+    private final int maxFrameChars;
+    private final long maxDelayNanos;
+    private final StringBuilder buffer = new StringBuilder();
+    private long lastEmitNanos = System.nanoTime();
+
+    public TokenCoalescer(Consumer<String> frameSink, int maxFrameChars, long maxDelayMillis) {
+        this.frameSink = frameSink;
+        this.maxFrameChars = maxFrameChars;
+        this.maxDelayNanos = maxDelayMillis * 1_000_000;
+    }
+
+    public void accept(String token) {
+        buffer.append(token);
+
+        int newline;
+        while ((newline = buffer.indexOf("\n")) >= 0) {
+            emit(newline, newline + 1);
+        }
+
+        boolean full = buffer.length() >= maxFrameChars;
+        boolean stale = System.nanoTime() - lastEmitNanos >= maxDelayNanos;
+        if (full || stale) {
+            int breakAt = lastWhitespace();
+            if (breakAt > 0) {
+                emit(breakAt, breakAt + 1);
+            } else if (full) {
+                emit(buffer.length(), buffer.length());
+            }
+        }
+    }
+
+    /**
+     * Emits whatever is still buffered; call once the reply is complete.
+     */
+    public void finish() {
+        emit(buffer.length(), buffer.length());
+    }
+
+    private int lastWhitespace() {
+        for (int i = buffer.length() - 1; i > 0; i--) {
+            if (Character.isWhitespace(buffer.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void emit(int end, int consumed) {
+        String frame = buffer.substring(0, end).strip();
+        buffer.delete(0, consumed);
+        lastEmitNanos = System.nanoTime();
+        if (!frame.isEmpty()) {
+            frameSink.accept(frame);
+        }
+    }
+}
@@ -1,77 +1,169 @@
 package org.example;
 
 import java.security.SecureRandom;
-import java.time.Instant;
 import java.util.Base64;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Reconnect tokens, kept in a concurrent map so lookups take no lock.
+ *
+ * <p>Expiry uses a hashed timing wheel with one-second slots: every token is also queued in
+ * the slot of the second after it expires, and a single sweeper thread empties one slot per tick,
+ * so removing a token costs O(1) and nothing ever scans the whole map. The sweeper also
+ * advances a coarse clock that lookups compare against instead of reading the system time.
+ *
+ * <p>With a {@link TokenSigner}, tokens are signed instead and nothing is stored per token;
+ * only tokens invalidated before their expiry are remembered, until they expire.
+ */
 public class TokenManager {
     private static final long TOKEN_VALIDITY_SECONDS = 1200;
-    private final Map<String, TokenInfo> tokenMap = new HashMap<>();
+    private static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SLOTS = 2048; // a power of two covering more than the validity
+
+    private final Map<String, TokenInfo> tokenMap = new ConcurrentHashMap<>();
     private final SecureRandom secureRandom = new SecureRandom();
-    private final ReentrantLock tokenMapLock = new ReentrantLock();
+    private final Queue<String>[] wheel;
+    private final long validityMillis;
+    private final TokenSigner signer;
+    private final Map<String, Long> revokedTokens = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper;
+    private volatile long clockMillis = System.currentTimeMillis();
+    private long sweptTick = clockMillis / TICK_MILLIS;
+
+    public TokenManager() {
+        this(TOKEN_VALIDITY_SECONDS * 1000, null);
+    }
+
+    /**
+     * Token manager issuing signed tokens, or random ones stored here if {@code signer} is null.
+     */
+    public TokenManager(TokenSigner signer) {
+        this(TOKEN_VALIDITY_SECONDS * 1000, signer);
+    }
+
+    @SuppressWarnings({"unchecked", "this-escape"})
+    public TokenManager(long validityMillis, TokenSigner signer) {
+        this.validityMillis = validityMillis;
+        this.signer = signer;
+        this.wheel = (Queue<String>[]) new Queue<?>[WHEEL_SLOTS];
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(task ->
+                Thread.ofPlatform().name("token-sweeper").daemon(true).unstarted(task));
+        sweeper.scheduleAtFixedRate(() -> tick(System.currentTimeMillis()), TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
 
     public String generateToken(String username) {
+        if (signer != null) {
+            return signer.sign(username, System.currentTimeMillis() + validityMillis);
+        }
+
         byte[] randomBytes = new byte[32];
         secureRandom.nextBytes(randomBytes);
         String token = Base64.getEncoder().encodeToString(randomBytes);
 
-        TokenInfo tokenInfo = new TokenInfo(username, Instant.now().plusSeconds(TOKEN_VALIDITY_SECONDS));
-        tokenMapLock.lock();
-        try {
-            tokenMap.put(token, tokenInfo);
-        } finally {
-            tokenMapLock.unlock();
-        }
+        long expiresAt = System.currentTimeMillis() + validityMillis;
+        tokenMap.put(token, new TokenInfo(username, expiresAt));
+        // The slot after the one it expires in, so the token is always due when its slot is swept
+        wheel[slot(expiresAt / TICK_MILLIS + 1)].add(token);
         return token;
     }
 
     public String getUsernameFromToken(String token) {
-        tokenMapLock.lock();
-        try {
-            TokenInfo tokenInfo = tokenMap.get(token);
-            if (tokenInfo != null && tokenInfo.isValid()) {
-                return tokenInfo.username;
-            }
-            return null;
-        } finally {
-            tokenMapLock.unlock();
+        if (signer != null) {
+            return revokedTokens.containsKey(token) ? null : signer.verify(token, clockMillis);
+        }
+
+        TokenInfo tokenInfo = tokenMap.get(token);
+        if (tokenInfo != null && tokenInfo.expiresAtMillis > clockMillis) {
+            return tokenInfo.username;
         }
+        return null;
     }
 
     public void invalidateToken(String token) {
-        tokenMapLock.lock();
-        try {
-            tokenMap.remove(token);
-        } finally {
-            tokenMapLock.unlock();
+        if (signer != null) {
+            long expiresAt = TokenSigner.getExpiresAtMillis(token);
+            if (expiresAt > clockMillis && signer.verify(token, clockMillis) != null) {
+                revokedTokens.put(token, expiresAt);
+                wheel[slot(expiresAt / TICK_MILLIS + 1)].add(token);
+            }
+            return;
         }
+        // Its wheel entry stays behind and is dropped when the slot comes round
+        tokenMap.remove(token);
     }
 
-    public void cleanExpiredTokens() {
-        Thread.startVirtualThread(() -> {
-            tokenMapLock.lock();
-            try {
-                tokenMap.entrySet().removeIf(entry -> !entry.getValue().isValid());
-            } finally {
-                tokenMapLock.unlock();
-            }
-        });
+    public boolean isSigned() {
+        return signer != null;
+    }
+
+    /**
+     * Tokens held in memory: live ones, or revoked but unexpired ones for signed tokens.
+     */
+    public int size() {
+        return signer != null ? revokedTokens.size() : tokenMap.size();
     }
 
-    private static class TokenInfo {
-        private final String username;
-        private final Instant expirationTime;
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
 
-        public TokenInfo(String username, Instant expirationTime) {
-            this.username = username;
-            this.expirationTime = expirationTime;
+    /**
+     * Advances the clock to {@code now} and expires every token in the slots that passed since
+     * the last tick. Runs on the sweeper thread.
+     */
+    void tick(long now) {
+        clockMillis = now;
+        long currentTick = now / TICK_MILLIS;
+        // After a long pause, one pass over the wheel is enough to see every slot
+        long from = Math.max(sweptTick, currentTick - WHEEL_SLOTS);
+        for (long tick = from; tick <= currentTick; tick++) {
+            expireSlot(wheel[slot(tick)], now);
         }
+        sweptTick = currentTick + 1;
+    }
 
-        public boolean isValid() {
-            return Instant.now().isBefore(expirationTime);
+    private void expireSlot(Queue<String> slot, long now) {
+        int due = slot.size();
+        for (int i = 0; i < due; i++) {
+            String token = slot.poll();
+            if (token == null) {
+                return;
+            }
+            if (signer != null) {
+                Long expiresAt = revokedTokens.get(token);
+                if (expiresAt != null && expiresAt <= now) {
+                    revokedTokens.remove(token);
+                } else if (expiresAt != null) {
+                    slot.add(token);
+                }
+                continue;
+            }
+            TokenInfo tokenInfo = tokenMap.get(token);
+            if (tokenInfo == null) {
+                continue;
+            }
+            if (tokenInfo.expiresAtMillis <= now) {
+                tokenMap.remove(token, tokenInfo);
+            } else {
+                // Expires on a later turn of the wheel
+                slot.add(token);
+            }
         }
     }
+
+    private static int slot(long tick) {
+        return (int) (tick & (WHEEL_SLOTS - 1));
+    }
+
+    private record TokenInfo(String username, long expiresAtMillis) {
+    }
 }
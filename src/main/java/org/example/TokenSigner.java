@@ -0,0 +1,131 @@
+package org.example;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Self-contained reconnect tokens: {@code <username>.<expiry>.<mac>}, where the username and
+ * the HMAC-SHA256 are base64url and the expiry is in epoch seconds. Any server that has the
+ * key can check a token without looking anything up, including after a restart.
+ */
+public class TokenSigner {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int KEY_BYTES = 32;
+
+    private final Mac prototype;
+
+    public TokenSigner(byte[] key) {
+        try {
+            this.prototype = Mac.getInstance(ALGORITHM);
+            prototype.init(new SecretKeySpec(key, ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is not available", e);
+        }
+    }
+
+    /**
+     * Reads the key from {@code keyFile}, creating the file with a random key (readable by the
+     * owner only) if it does not exist yet.
+     */
+    public static TokenSigner fromKeyFile(String keyFile) throws IOException {
+        Path path = Paths.get(keyFile);
+        if (!Files.exists(path)) {
+            byte[] key = new byte[KEY_BYTES];
+            new SecureRandom().nextBytes(key);
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            Files.write(path, Base64.getEncoder().encode(key));
+            try {
+                Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException ignored) {
+                // Not a POSIX file system
+            }
+            Log.info("Created new token signing key in {}", keyFile);
+        }
+
+        byte[] key = Base64.getDecoder().decode(Files.readString(path).trim());
+        if (key.length < KEY_BYTES) {
+            throw new IOException("Token signing key in " + keyFile + " is shorter than " + KEY_BYTES + " bytes");
+        }
+        return new TokenSigner(key);
+    }
+
+    public String sign(String username, long expiresAtMillis) {
+        String payload = Base64.getUrlEncoder().withoutPadding().encodeToString(username.getBytes(StandardCharsets.UTF_8))
+                + "." + expiresAtMillis / 1000;
+        return payload + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(mac(payload));
+    }
+
+    /**
+     * Returns the username if the signature matches and the token has not expired at
+     * {@code nowMillis}, otherwise null.
+     */
+    public String verify(String token, long nowMillis) {
+        int lastDot = token.lastIndexOf('.');
+        int firstDot = token.indexOf('.');
+        if (firstDot <= 0 || lastDot == firstDot) {
+            return null;
+        }
+
+        String payload = token.substring(0, lastDot);
+        String encodedMac = token.substring(lastDot + 1);
+        byte[] presented;
+        try {
+            presented = Base64.getUrlDecoder().decode(encodedMac);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        // Only the encoding sign produces: unused trailing bits or padding would give one MAC
+        // several spellings, and a revoked token would come back under another one
+        if (!Base64.getUrlEncoder().withoutPadding().encodeToString(presented).equals(encodedMac)) {
+            return null;
+        }
+        // Constant time, so the comparison does not reveal how much of a forged MAC is right
+        if (!MessageDigest.isEqual(mac(payload), presented)) {
+            return null;
+        }
+
+        long expiresAtMillis = getExpiresAtMillis(token);
+        if (expiresAtMillis <= nowMillis) {
+            return null;
+        }
+        return new String(Base64.getUrlDecoder().decode(token.substring(0, firstDot)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Expiry written in a token, without checking its signature; -1 if it is malformed.
+     */
+    public static long getExpiresAtMillis(String token) {
+        int firstDot = token.indexOf('.');
+        int lastDot = token.lastIndexOf('.');
+        if (firstDot <= 0 || lastDot == firstDot) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(token, firstDot + 1, lastDot, 10) * 1000;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private byte[] mac(String payload) {
+        try {
+            // Mac is not thread-safe; a clone of the initialized prototype is cheap
+            Mac mac = (Mac) prototype.clone();
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package org.example;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Binary framing that a client can ask for instead of text lines. The client sends
+ * {@link #NEGOTIATE} as its very first line; the server answers with the line
+ * {@link #ACCEPTED} and from then on both sides only send frames:
+ *
+ * <pre>
+ * [byte opcode][byte flags][int room id][int payload length][payload, utf-8]
+ * </pre>
+ *
+ * Integers are big-endian. The room id is 0 when a frame is not about a room. Clients that
+ * never send {@code NEGOTIATE} keep talking the line protocol.
+ */
+public final class WireProtocol {
+    public static final String NEGOTIATE = "BINARY 1";
+    public static final String ACCEPTED = "BINARY OK";
+
+    public static final int HEADER_BYTES = 10;
+    public static final int MAX_REQUEST_PAYLOAD = 64 * 1024;
+    public static final int MAX_RESPONSE_PAYLOAD = 16 * 1024 * 1024;
+
+    // Client to server
+    public static final byte LOGIN = 1;      // payload "<username> <password>"
+    public static final byte REGISTER = 2;   // payload "<username> <password>"
+    public static final byte RECONNECT = 3;  // payload token
+    public static final byte JOIN = 4;       // payload room name
+    public static final byte LEAVE = 5;
+    public static final byte SEND = 6;       // payload message; room id 0 or the current room's
+    public static final byte LIST = 7;
+    public static final byte HISTORY = 8;    // payload count, may be empty
+    public static final byte HELP = 9;
+    public static final byte QUIT = 10;
+    public static final byte LLM_LIST = 11;
+    public static final byte LLM_JOIN = 12;  // payload model name
+    public static final byte STATS = 13;     // administrators only
+
+    // Server to client
+    public static final byte TEXT = 32;        // any reply without a more specific opcode
+    public static final byte AUTH_PROMPT = 33;
+    public static final byte TOKEN = 34;       // payload reconnect token
+    public static final byte WELCOME = 35;
+    public static final byte MESSAGE = 36;     // something said or happening in a room
+    public static final byte JOINED = 37;
+    public static final byte LEFT = 38;
+    public static final byte RECONNECTED = 39;
+
+    private static final String[] COMMAND_NAMES = {"UNKNOWN", "LOGIN", "REGISTER", "RECONNECT", "JOIN", "LEAVE",
+            "SEND", "LIST", "HISTORY", "HELP", "QUIT", "LLM LIST", "LLM JOIN", "STATS"};
+
+    // Flags on MESSAGE
+    public static final byte FLAG_ANNOUNCE = 1; // an event such as a join, not kept in history
+    public static final byte FLAG_HISTORY = 2;  // replayed by HISTORY
+
+    private WireProtocol() {
+    }
+
+    /**
+     * Encodes one frame into a single array, so it goes out in one write.
+     */
+    public static byte[] encode(byte opcode, byte flags, int roomId, String payload) {
+        byte[] utf8 = payload.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[HEADER_BYTES + utf8.length];
+        frame[0] = opcode;
+        frame[1] = flags;
+        putInt(frame, 2, roomId);
+        putInt(frame, 6, utf8.length);
+        System.arraycopy(utf8, 0, frame, HEADER_BYTES, utf8.length);
+        return frame;
+    }
+
+    /**
+     * Encodes a command as typed by a user, e.g. {@code JOIN lobby}, as its frame; SEND is
+     * addressed to {@code roomId}. Returns null for an unknown command.
+     */
+    public static byte[] encodeCommand(String command, int roomId) {
+        byte opcode = opcodeOf(command);
+        switch (opcode) {
+            case 0:
+                return null;
+            case SEND:
+                return encode(SEND, (byte) 0, roomId, argumentOf(command));
+            case LIST:
+            case HISTORY:
+                return encode(opcode, argumentOf(command).trim());
+            default:
+                return encode(opcode, argumentOf(command));
+        }
+    }
+
+    /**
+     * The opcode of a command typed as a line, or 0 if it is not one. Allocates nothing, so
+     * the server can use it to classify every line it reads.
+     */
+    public static byte opcodeOf(String command) {
+        if (command.startsWith("SEND ")) {
+            return SEND;
+        } else if (command.startsWith("JOIN ")) {
+            return JOIN;
+        } else if (command.startsWith("LOGIN ")) {
+            return LOGIN;
+        } else if (command.startsWith("REGISTER ")) {
+            return REGISTER;
+        } else if (command.startsWith("RECONNECT ")) {
+            return RECONNECT;
+        } else if (command.equals("LIST") || command.startsWith("LIST ")) {
+            return LIST;
+        } else if (command.equals("LEAVE")) {
+            return LEAVE;
+        } else if (command.equals("HISTORY") || command.startsWith("HISTORY ")) {
+            return HISTORY;
+        } else if (command.equals("HELP")) {
+            return HELP;
+        } else if (command.equals("QUIT")) {
+            return QUIT;
+        } else if (command.equals("LLM LIST")) {
+            return LLM_LIST;
+        } else if (command.startsWith("LLM JOIN ")) {
+            return LLM_JOIN;
+        } else if (command.equals("STATS")) {
+            return STATS;
+        }
+        return 0;
+    }
+
+    /**
+     * Name of a client command opcode as typed, e.g. "LLM JOIN"; "UNKNOWN" for anything else.
+     */
+    public static String commandName(byte opcode) {
+        return opcode > 0 && opcode < COMMAND_NAMES.length ? COMMAND_NAMES[opcode] : COMMAND_NAMES[0];
+    }
+
+    private static String argumentOf(String command) {
+        int space = command.indexOf(' ', command.startsWith("LLM ") ? 4 : 0);
+        return space < 0 ? "" : command.substring(space + 1);
+    }
+
+    private static byte[] encode(byte opcode, String payload) {
+        return encode(opcode, (byte) 0, 0, payload);
+    }
+
+    /**
+     * Reads the next frame, or returns null if the stream ends between frames.
+     */
+    public static Frame read(DataInputStream in, int maxPayload) throws IOException {
+        int opcode = in.read();
+        if (opcode < 0) {
+            return null;
+        }
+        byte[] header = new byte[HEADER_BYTES];
+        header[0] = (byte) opcode;
+        in.readFully(header, 1, HEADER_BYTES - 1);
+        int length = payloadLength(header);
+        if (length < 0 || length > maxPayload) {
+            throw new IOException("Bad frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(header, payload);
+    }
+
+    /**
+     * Payload length from a complete header.
+     */
+    public static int payloadLength(byte[] header) {
+        return getInt(header, 6);
+    }
+
+    /**
+     * Reads one line as raw bytes, for the lines exchanged before a connection switches to
+     * frames; a buffering reader would swallow the first frames. Returns null at end of stream.
+     */
+    public static String readLine(InputStream in, int maxBytes) throws IOException {
+        byte[] line = new byte[128];
+        int length = 0;
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (length == 0) {
+                    return null;
+                }
+                throw new EOFException("Stream ended inside a line");
+            }
+            if (length == maxBytes) {
+                throw new IOException("Line too long");
+            }
+            if (length == line.length) {
+                line = Arrays.copyOf(line, Math.min(line.length * 2, maxBytes));
+            }
+            line[length++] = (byte) b;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+                | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+
+    /**
+     * A received frame. The payload array is owned by the frame; its fields are decoded
+     * straight from slices of it, without intermediate strings or splitting.
+     */
+    public static final class Frame {
+        private final byte opcode;
+        private final byte flags;
+        private final int roomId;
+        private final byte[] payload;
+
+        public Frame(byte[] header, byte[] payload) {
+            this.opcode = header[0];
+            this.flags = header[1];
+            this.roomId = getInt(header, 2);
+            this.payload = payload;
+        }
+
+        public byte getOpcode() {
+            return opcode;
+        }
+
+        public byte getFlags() {
+            return flags;
+        }
+
+        public int getRoomId() {
+            return roomId;
+        }
+
+        public int getPayloadLength() {
+            return payload.length;
+        }
+
+        public String payload() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Payload bytes {@code [from, to)} as a string.
+         */
+        public String slice(int from, int to) {
+            return new String(payload, from, to - from, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Index of the first {@code b} in the payload, or -1.
+         */
+        public int indexOf(byte b) {
+            for (int i = 0; i < payload.length; i++) {
+                if (payload[i] == b) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.example;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ChatHistoryTest {
+    // 10 tokens is 40 characters of content
+    private static final int BUDGET_TOKENS = 10;
+
+    @Test
+    void slidesTheOldestTurnsOutOfTheBudget() {
+        ChatHistory history = new ChatHistory(BUDGET_TOKENS, false);
+        history.add("user", "a".repeat(15));
+        history.add("assistant", "b".repeat(15));
+        assertEquals(2, history.size());
+
+        history.add("user", "c".repeat(15));
+        assertEquals(List.of("assistant: " + "b".repeat(15), "user: " + "c".repeat(15)), messages(history, null));
+        assertEquals(30, history.getWindowChars());
+    }
+
+    @Test
+    void keepsTheNewestTurnEvenIfItIsOverBudget() {
+        ChatHistory history = new ChatHistory(BUDGET_TOKENS, false);
+        history.add("user", "a");
+        history.add("assistant", "b".repeat(100));
+
+        assertEquals(List.of("assistant: " + "b".repeat(100)), messages(history, null));
+    }
+
+    @Test
+    void keepsEvictedTurnsOnlyWhenAsked() {
+        ChatHistory keeping = new ChatHistory(BUDGET_TOKENS, true);
+        ChatHistory dropping = new ChatHistory(BUDGET_TOKENS, false);
+        for (ChatHistory history : List.of(keeping, dropping)) {
+            history.add("user", "a".repeat(30));
+            history.add("assistant", "b".repeat(30));
+        }
+
+        assertEquals(List.of("user: " + "a".repeat(30)), keeping.takeEvicted());
+        assertEquals(List.of(), keeping.takeEvicted());
+        assertEquals(List.of(), dropping.takeEvicted());
+    }
+
+    @Test
+    void sendsTheSummaryFirstAndCountsItAgainstTheBudget() {
+        ChatHistory history = new ChatHistory(BUDGET_TOKENS, true);
+        history.add("user", "a".repeat(16));
+        history.add("assistant", "b".repeat(16));
+
+        // Capped at a quarter of the budget, which pushes the window over it
+        history.setSummary("s".repeat(50));
+        assertEquals("s".repeat(10), history.getSummary());
+        assertEquals(List.of("system: Summary of the earlier conversation: " + "s".repeat(10),
+                "assistant: " + "b".repeat(16)), messages(history, null));
+        assertEquals(List.of("user: " + "a".repeat(16)), history.takeEvicted());
+
+        history.setSummary(" ");
+        assertNull(history.getSummary());
+        assertEquals(List.of("assistant: " + "b".repeat(16)), messages(history, null));
+    }
+
+    @Test
+    void makesRoomForAPendingPromptWithoutEvicting() {
+        ChatHistory history = new ChatHistory(BUDGET_TOKENS, true);
+        history.add("user", "a".repeat(15));
+        history.add("assistant", "b".repeat(15));
+
+        assertEquals(List.of("assistant: " + "b".repeat(15), "user: " + "p".repeat(15)),
+                messages(history, "p".repeat(15)));
+        assertEquals(2, history.size());
+        assertEquals(List.of(), history.takeEvicted());
+
+        // A short prompt fits beside both turns
+        assertEquals(3, messages(history, "p").size());
+    }
+
+    @Test
+    void sendsAPendingPromptAfterTheSummaryAlone() {
+        ChatHistory history = new ChatHistory(BUDGET_TOKENS, false);
+        history.setSummary("earlier");
+
+        assertEquals(List.of("system: Summary of the earlier conversation: earlier", "user: hello"),
+                messages(history, "hello"));
+    }
+
+    @Test
+    void keepsTheWindowIntactAcrossManyTurns() {
+        ChatHistory history = new ChatHistory(BUDGET_TOKENS, false);
+        for (int i = 0; i < 1000; i++) {
+            history.add(i % 2 == 0 ? "user" : "assistant", String.format("turn %05d", i));
+        }
+
+        // Ten characters each, so four fit
+        assertEquals(List.of("user: turn 00996", "assistant: turn 00997", "user: turn 00998", "assistant: turn 00999"),
+                messages(history, null));
+    }
+
+    @Test
+    void escapesContent() {
+        ChatHistory history = new ChatHistory(BUDGET_TOKENS, false);
+        history.add("user", "say \"hi\"\n\\");
+
+        assertEquals(List.of("user: say \"hi\"\n\\"), messages(history, null));
+    }
+
+    @Test
+    void rejectsANonPositiveBudget() {
+        assertThrows(IllegalArgumentException.class, () -> new ChatHistory(0, false));
+    }
+
+    /**
+     * The messages a request would carry, as "role: content".
+     */
+    private static List<String> messages(ChatHistory history, String prompt) {
+        StringBuilder body = new StringBuilder("{");
+        history.appendMessages(body, prompt);
+        JSONArray messages = new JSONObject(body.append('}').toString()).getJSONArray("messages");
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < messages.length(); i++) {
+            JSONObject message = messages.getJSONObject(i);
+            lines.add(message.getString("role") + ": " + message.getString("content"));
+        }
+        return lines;
+    }
+}
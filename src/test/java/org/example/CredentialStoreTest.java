@@ -0,0 +1,165 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CredentialStoreTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysRegistrationsFromTheLog() throws Exception {
+        CredentialStore store = open();
+        assertTrue(store.register("alice", hash("alice")));
+        assertTrue(store.register("bob", hash("bob")));
+        assertFalse(store.register("alice", hash("someone else")));
+        store.close();
+
+        CredentialStore reopened = open();
+        assertEquals(2, reopened.size());
+        assertEquals(hash("alice"), reopened.getHash("alice"));
+        assertEquals(hash("bob"), reopened.getHash("bob"));
+        reopened.close();
+    }
+
+    @Test
+    void skipsALineTornByACrash() throws Exception {
+        // The first carol line was torn by an earlier crash and ended on the next start
+        Files.writeString(log(), "alice:" + hash("alice") + "\ncarol:$2a$10$ab\nbob:" + hash("bob") + "\ncarol:$2");
+
+        CredentialStore store = open();
+        assertEquals(2, store.size());
+        assertNull(store.getHash("carol"));
+        // Starts on a fresh line rather than after the torn one
+        assertTrue(store.register("dave", hash("dave")));
+        store.close();
+
+        CredentialStore reopened = open();
+        assertEquals(3, reopened.size());
+        assertEquals(hash("dave"), reopened.getHash("dave"));
+        reopened.close();
+    }
+
+    @Test
+    void replayingTheLogOverTheSnapshotIsHarmless() throws Exception {
+        Files.writeString(snapshot(), "alice:" + hash("alice") + "\nbob:" + hash("bob") + "\n");
+        Files.writeString(log(), "bob:" + hash("bob") + "\ncarol:" + hash("carol") + "\n");
+
+        CredentialStore store = open();
+        assertEquals(3, store.size());
+        assertEquals(hash("bob"), store.getHash("bob"));
+        store.close();
+    }
+
+    @Test
+    void compactsTheLogIntoASnapshot() throws Exception {
+        CredentialStore store = new CredentialStore(log().toString(), snapshot().toString(), 5, 60_000);
+        for (String username : List.of("erin", "dave", "carol", "bob", "alice")) {
+            assertTrue(store.register(username, hash(username)));
+        }
+        // The fifth registration starts a snapshot; the writer then drops what it covers
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (Files.size(log()) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, store.getSnapshotCount());
+        assertEquals(0, Files.size(log()));
+        assertTrue(store.register("frank", hash("frank")));
+        store.close();
+
+        List<String> sorted = List.of("alice", "bob", "carol", "dave", "erin");
+        assertEquals(sorted.stream().map(username -> username + ":" + hash(username)).toList(),
+                Files.readAllLines(snapshot()));
+        assertEquals(List.of("frank:" + hash("frank")), Files.readAllLines(log()));
+
+        CredentialStore reopened = open();
+        assertEquals(6, reopened.size());
+        reopened.close();
+    }
+
+    @Test
+    void rejectsUsernamesThatWouldBreakTheLineFormat() throws Exception {
+        CredentialStore store = open();
+        assertThrows(IllegalArgumentException.class, () -> store.register("al:ice", hash("alice")));
+        assertThrows(IllegalArgumentException.class, () -> store.register("al\nice", hash("alice")));
+        assertThrows(IllegalArgumentException.class, () -> store.register("al\rice", hash("alice")));
+        assertEquals(0, store.size());
+        store.close();
+    }
+
+    @Test
+    void refusesRegistrationsOnceClosed() throws Exception {
+        CredentialStore store = open();
+        store.close();
+
+        assertThrows(IOException.class, () -> store.register("alice", hash("alice")));
+        assertFalse(store.contains("alice"));
+    }
+
+    @Test
+    void aRegistrationRacingCloseIsEitherWrittenOrRefused() throws Exception {
+        CredentialStore store = open();
+        Set<String> registered = ConcurrentHashMap.newKeySet();
+        List<Thread> users = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            users.add(Thread.ofPlatform().start(() -> {
+                try {
+                    for (int i = 0; ; i++) {
+                        String username = "user" + thread + "-" + i;
+                        if (store.register(username, hash(username))) {
+                            registered.add(username);
+                        }
+                    }
+                } catch (IOException e) {
+                    // Closed
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        Thread.sleep(50);
+        store.close();
+
+        for (Thread user : users) {
+            user.join(10_000);
+            assertFalse(user.isAlive(), "register never returned");
+        }
+        CredentialStore reopened = open();
+        assertEquals(registered.size(), reopened.size());
+        reopened.close();
+    }
+
+    private CredentialStore open() throws IOException {
+        return new CredentialStore(log().toString(), snapshot().toString());
+    }
+
+    private Path log() {
+        return directory.resolve("users.txt");
+    }
+
+    private Path snapshot() {
+        return directory.resolve("users.snapshot");
+    }
+
+    /**
+     * Something shaped like a bcrypt hash, which is all the store checks.
+     */
+    private static String hash(String username) {
+        return "$2a$10$" + String.format("%-53s", username).replace(' ', '.');
+    }
+}
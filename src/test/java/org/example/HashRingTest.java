@@ -0,0 +1,84 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashRingTest {
+    private static final int KEYS = 30_000;
+    private static final List<String> NODES = List.of("10.0.0.1:9500", "10.0.0.2:9500", "10.0.0.3:9500");
+
+    @Test
+    void anEmptyRingOwnsNothing() {
+        assertNull(new HashRing(List.of()).ownerOf("general"));
+    }
+
+    @Test
+    void aSingleNodeOwnsEverything() {
+        HashRing ring = new HashRing(List.of("10.0.0.1:9500"));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("10.0.0.1:9500", ring.ownerOf("room" + i));
+        }
+    }
+
+    @Test
+    void spreadsKeysEvenly() {
+        Map<String, Integer> owned = new HashMap<>();
+        HashRing ring = new HashRing(NODES);
+        for (int i = 0; i < KEYS; i++) {
+            owned.merge(ring.ownerOf("room" + i), 1, Integer::sum);
+        }
+
+        assertEquals(Set.copyOf(NODES), owned.keySet());
+        for (Map.Entry<String, Integer> entry : owned.entrySet()) {
+            double share = entry.getValue() / (double) KEYS;
+            assertTrue(share > 0.25 && share < 0.42, entry.getKey() + " owns " + share);
+        }
+    }
+
+    @Test
+    void ownersDoNotDependOnTheOrderNodesAreListedIn() {
+        HashRing ring = new HashRing(NODES);
+        HashRing reversed = new HashRing(NODES.reversed());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(ring.ownerOf("room" + i), reversed.ownerOf("room" + i));
+        }
+    }
+
+    @Test
+    void aJoiningNodeOnlyTakesKeysForItself() {
+        HashRing before = new HashRing(NODES);
+        HashRing after = new HashRing(List.of("10.0.0.1:9500", "10.0.0.2:9500", "10.0.0.3:9500", "10.0.0.4:9500"));
+
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "room" + i;
+            if (!before.ownerOf(key).equals(after.ownerOf(key))) {
+                assertEquals("10.0.0.4:9500", after.ownerOf(key), key);
+                moved++;
+            }
+        }
+        double share = moved / (double) KEYS;
+        assertTrue(share > 0.18 && share < 0.32, "moved " + share);
+    }
+
+    @Test
+    void aLeavingNodeOnlyGivesUpItsOwnKeys() {
+        HashRing before = new HashRing(NODES);
+        HashRing after = new HashRing(List.of("10.0.0.1:9500", "10.0.0.3:9500"));
+
+        for (int i = 0; i < KEYS; i++) {
+            String key = "room" + i;
+            if (!before.ownerOf(key).equals("10.0.0.2:9500")) {
+                assertEquals(before.ownerOf(key), after.ownerOf(key), key);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageHistoryTest {
+
+    @Test
+    void returnsTheMostRecentMessagesOldestFirst() {
+        MessageHistory history = new MessageHistory(1024, 0, false);
+        for (int i = 0; i < 5; i++) {
+            history.append("message " + i);
+        }
+
+        assertEquals(List.of("message 2", "message 3", "message 4"), history.last(3));
+        assertEquals(5, history.all().size());
+        assertEquals(List.of(), history.last(0));
+    }
+
+    @Test
+    void overwritesTheOldestMessagesOnceFull() {
+        // 21-byte messages in 100 bytes: four fit, and every lap starts at a different offset
+        MessageHistory history = new MessageHistory(100, 0, false);
+        for (int i = 0; i < 1000; i++) {
+            history.append(String.format("message-%013d", i));
+        }
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 996; i < 1000; i++) {
+            expected.add(String.format("message-%013d", i));
+        }
+        assertEquals(expected, history.all());
+    }
+
+    @Test
+    void messagesSpanningTheEndOfTheBufferComeBackWhole() {
+        MessageHistory history = new MessageHistory(32, 0, true);
+        history.append("0123456789abcdefghij");
+        // Starts at byte 20 and wraps to the front
+        history.append("ABCDEFGHIJKLMNO");
+
+        assertEquals(List.of("ABCDEFGHIJKLMNO"), history.all());
+    }
+
+    @Test
+    void keepsMultiByteCharactersIntactAcrossTheWrap() {
+        MessageHistory history = new MessageHistory(40, 0, false);
+        for (int i = 0; i < 50; i++) {
+            history.append("é€" + i);
+        }
+
+        List<String> all = history.all();
+        assertEquals("é€49", all.get(all.size() - 1));
+        for (String message : all) {
+            assertTrue(message.startsWith("é€"), message);
+        }
+    }
+
+    @Test
+    void limitsTheNumberOfEntries() {
+        // One entry per 16 bytes of capacity on average
+        MessageHistory history = new MessageHistory(64, 0, false);
+        for (int i = 0; i < 100; i++) {
+            history.append("x");
+        }
+
+        assertEquals(4, history.size());
+    }
+
+    @Test
+    void ignoresMessagesLargerThanTheBuffer() {
+        MessageHistory history = new MessageHistory(16, 0, false);
+        history.append("kept");
+        history.append("this message does not fit");
+
+        assertEquals(List.of("kept"), history.all());
+    }
+
+    @Test
+    void dropsMessagesOlderThanTheAgeLimit() {
+        MessageHistory history = new MessageHistory(1024, 60_000, false);
+        long now = System.currentTimeMillis();
+        history.append("old", now - 120_000);
+        history.append("recent", now);
+
+        assertEquals(List.of("recent"), history.all());
+    }
+}
@@ -0,0 +1,66 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundQueueTest {
+
+    @Test
+    void dropOldestShedsRoomMessagesButNotControlReplies() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.offer(OutboundMessage.BINARY_ACCEPTED);
+        queue.offer(room("one"));
+        queue.offer(room("two"));
+        queue.offer(OutboundMessage.token("secret"));
+
+        assertEquals(List.of(WireProtocol.ACCEPTED, "AUTH_TOKEN secret"), drain(queue));
+        assertEquals(2, queue.getDroppedCount());
+    }
+
+    @Test
+    void dropOldestDropsANewRoomMessageWhenOnlyControlRepliesAreQueued() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(1, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.offer(OutboundMessage.BINARY_ACCEPTED);
+        assertTrue(queue.offer(room("one")));
+
+        assertEquals(List.of(WireProtocol.ACCEPTED), drain(queue));
+    }
+
+    @Test
+    void dropNewKeepsControlReplies() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(1, OutboundQueue.OverflowPolicy.DROP_NEW);
+        queue.offer(room("one"));
+        queue.offer(room("two"));
+        queue.offer(OutboundMessage.token("secret"));
+
+        assertEquals(List.of("one", "AUTH_TOKEN secret"), drain(queue));
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    void disconnectRefusesAnythingOnceFull() {
+        OutboundQueue queue = new OutboundQueue(1, OutboundQueue.OverflowPolicy.DISCONNECT);
+        assertTrue(queue.offer(room("one")));
+        assertFalse(queue.offer(OutboundMessage.token("secret")));
+    }
+
+    private static OutboundMessage room(String text) {
+        return OutboundMessage.roomMessage(1, (byte) 0, text);
+    }
+
+    private static List<String> drain(OutboundQueue queue) throws InterruptedException {
+        queue.close();
+        List<String> lines = new ArrayList<>();
+        OutboundMessage message;
+        while ((message = queue.take()) != null) {
+            lines.add(message.getLine());
+        }
+        return lines;
+    }
+}
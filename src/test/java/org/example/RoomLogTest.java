@@ -0,0 +1,236 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RoomLogTest {
+    // 1024-byte records: three fit in a 4096-byte segment, and every fourth one is indexed
+    private static final int PAYLOAD_BYTES = 1008;
+    private static final int RECORD_BYTES = 1024;
+    private static final int SEGMENT_BYTES = 4096;
+
+    @TempDir
+    Path directory;
+
+    private RoomLogStore store;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        store = new RoomLogStore(directory.resolve("store").toString());
+    }
+
+    @AfterEach
+    void tearDown() {
+        store.close();
+    }
+
+    @Test
+    void appendsThroughTheStoreAreThereAfterReopening() throws IOException {
+        RoomLog log = store.open("general");
+        log.append("hello");
+        log.append("wörld");
+        // Writes out what is queued and fsyncs
+        store.close();
+
+        store = new RoomLogStore(directory.resolve("store").toString());
+        assertEquals(List.of("hello", "wörld"), texts(store.open("general").readRecent(1024)));
+    }
+
+    @Test
+    void readRecentReturnsTheNewestMessagesThatFitOldestFirst() throws IOException {
+        RoomLog log = open(0);
+        for (int i = 0; i < 10; i++) {
+            log.write(payload(i), 1000 + i);
+        }
+
+        // Record 8 is indexed, so exactly the last two come back
+        List<RoomLog.LoggedMessage> recent = log.readRecent(2 * RECORD_BYTES);
+        assertEquals(List.of(text(8), text(9)), texts(recent));
+        assertEquals(1009, recent.get(1).timestamp());
+    }
+
+    @Test
+    void readRecentStartsAtTheIndexedRecordBeforeTheBudget() throws IOException {
+        RoomLog log = open(0);
+        for (int i = 0; i < 10; i++) {
+            log.write(payload(i), i);
+        }
+
+        assertEquals(List.of(text(8), text(9)), texts(log.readRecent(RECORD_BYTES)));
+        assertEquals(List.of(text(4), text(5), text(6), text(7), text(8), text(9)),
+                texts(log.readRecent(3 * RECORD_BYTES)));
+    }
+
+    @Test
+    void dropsATornRecordAtTheTail() throws IOException {
+        RoomLog log = open(0);
+        for (int i = 0; i < 3; i++) {
+            log.write(payload(i), i);
+        }
+        log.close();
+        corruptPayload(segmentFile(0), 2 * RECORD_BYTES);
+
+        RoomLog recovered = open(0);
+        assertEquals(List.of(text(0), text(1)), texts(recovered.readRecent(Integer.MAX_VALUE)));
+
+        // The next record goes where the torn one was
+        recovered.write(payload(7), 7);
+        recovered.close();
+        assertEquals(List.of(text(0), text(1), text(7)), texts(open(0).readRecent(Integer.MAX_VALUE)));
+    }
+
+    @Test
+    void recordsPastATornOneStayGoneAfterTheNextRecovery() throws IOException {
+        RoomLog log = open(0);
+        for (int i = 0; i < 4; i++) {
+            log.write(payload(i), i);
+        }
+        log.close();
+        corruptPayload(segmentFile(0), RECORD_BYTES);
+
+        // Recovery stops at record 1; records 2 and 3 are still intact on disk behind it
+        RoomLog recovered = open(0);
+        recovered.write(payload(7), 7);
+        recovered.close();
+
+        assertEquals(List.of(text(0), text(7)), texts(open(0).readRecent(Integer.MAX_VALUE)));
+    }
+
+    @Test
+    void dropsIndexEntriesPastATornTail() throws IOException {
+        RoomLog log = open(0);
+        // Segments large enough that records 0 and 4 are both indexed in the first one
+        for (int i = 0; i < 5; i++) {
+            log.write(payload(i), i);
+        }
+        log.close();
+        Path index = directory.resolve("room").resolve(String.format("%020d.idx", 0));
+        assertEquals(24, Files.size(index));
+        corruptPayload(segmentFile(0), 4 * RECORD_BYTES);
+
+        RoomLog recovered = open(0);
+        assertEquals(12, Files.size(index));
+        recovered.write(payload(9), 9);
+        recovered.close();
+
+        assertEquals(List.of(text(0), text(1), text(2), text(3), text(9)),
+                texts(open(0).readRecent(Integer.MAX_VALUE)));
+    }
+
+    @Test
+    void rollsOverToSegmentsNamedByTheirFirstOffset() throws IOException {
+        RoomLog log = open(SEGMENT_BYTES, 0);
+        for (int i = 0; i < 10; i++) {
+            log.write(payload(i), i);
+        }
+        log.close();
+
+        assertEquals(List.of(0L, 3L, 6L, 9L), segmentOffsets());
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            expected.add(text(i));
+        }
+        assertEquals(expected, texts(open(SEGMENT_BYTES, 0).readRecent(Integer.MAX_VALUE)));
+    }
+
+    @Test
+    void continuesTheOffsetsAfterReopening() throws IOException {
+        RoomLog log = open(SEGMENT_BYTES, 0);
+        for (int i = 0; i < 10; i++) {
+            log.write(payload(i), i);
+        }
+        log.close();
+
+        RoomLog reopened = open(SEGMENT_BYTES, 0);
+        for (int i = 10; i < 13; i++) {
+            reopened.write(payload(i), i);
+        }
+        reopened.close();
+
+        // 9, 10 and 11 fill the last segment, so 12 starts a new one
+        assertEquals(List.of(0L, 3L, 6L, 9L, 12L), segmentOffsets());
+    }
+
+    @Test
+    void keepsOnlyTheRetainedNumberOfSegments() throws IOException {
+        RoomLog log = open(SEGMENT_BYTES, 2);
+        for (int i = 0; i < 10; i++) {
+            log.write(payload(i), i);
+        }
+        log.close();
+
+        assertEquals(List.of(6L, 9L), segmentOffsets());
+        assertEquals(List.of(text(6), text(7), text(8), text(9)),
+                texts(open(SEGMENT_BYTES, 2).readRecent(Integer.MAX_VALUE)));
+    }
+
+    @Test
+    void dropsRecordsLargerThanASegment() throws IOException {
+        RoomLog log = open(SEGMENT_BYTES, 0);
+        log.write(new byte[SEGMENT_BYTES], 0);
+        log.write(payload(1), 1);
+
+        assertEquals(List.of(text(1)), texts(log.readRecent(Integer.MAX_VALUE)));
+    }
+
+    private RoomLog open(int retainSegments) throws IOException {
+        return open(1024 * 1024, retainSegments);
+    }
+
+    private RoomLog open(int segmentBytes, int retainSegments) throws IOException {
+        return new RoomLog(store, "room", directory.resolve("room"), segmentBytes, retainSegments, 0);
+    }
+
+    private Path segmentFile(long baseOffset) {
+        return directory.resolve("room").resolve(String.format("%020d.log", baseOffset));
+    }
+
+    private List<Long> segmentOffsets() throws IOException {
+        try (Stream<Path> files = Files.list(directory.resolve("room"))) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(".log"))
+                    .map(name -> Long.parseLong(name.substring(0, name.length() - 4)))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    /**
+     * Flips a payload byte of the record at {@code position}, as a write torn by a crash would.
+     */
+    private static void corruptPayload(Path segment, int position) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1);
+            channel.read(buffer, position + 16);
+            buffer.put(0, (byte) (buffer.get(0) ^ 0xff));
+            buffer.rewind();
+            channel.write(buffer, position + 16);
+        }
+    }
+
+    private static byte[] payload(int i) {
+        return text(i).getBytes();
+    }
+
+    private static String text(int i) {
+        return String.format("%-" + PAYLOAD_BYTES + "s", "message " + i);
+    }
+
+    private static List<String> texts(List<RoomLog.LoggedMessage> messages) {
+        return messages.stream().map(RoomLog.LoggedMessage::text).toList();
+    }
+}
@@ -0,0 +1,147 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RoomRegistryTest {
+    // Past the default idle timeout of five minutes
+    private static final long LATER = 3_600_000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void createsARoomOnceAndSharesIt() {
+        RoomRegistry rooms = new RoomRegistry(DefaultRoom::new);
+        DefaultRoom room = rooms.acquire("general");
+
+        assertSame(room, rooms.acquire("general"));
+        assertEquals(1, rooms.size());
+        assertEquals(List.of("general"), List.copyOf(rooms.getNames()));
+    }
+
+    @Test
+    void evictsARoomOnlyOnceNobodyHoldsIt() {
+        RoomRegistry rooms = new RoomRegistry(DefaultRoom::new);
+        DefaultRoom room = rooms.acquire("general");
+        rooms.acquire("general");
+
+        rooms.release(room);
+        assertEquals(0, rooms.evictIdleRooms(System.currentTimeMillis() + LATER));
+        rooms.release(room);
+        assertEquals(0, rooms.evictIdleRooms(System.currentTimeMillis()));
+
+        assertEquals(1, rooms.evictIdleRooms(System.currentTimeMillis() + LATER));
+        assertNull(rooms.get("general"));
+        assertTrue(rooms.getNames().isEmpty());
+    }
+
+    @Test
+    void anEvictedRoomIsReplacedByAFreshOne() {
+        RoomRegistry rooms = new RoomRegistry(DefaultRoom::new);
+        DefaultRoom room = rooms.acquire("general");
+        rooms.release(room);
+        rooms.evictIdleRooms(System.currentTimeMillis() + LATER);
+
+        assertFalse(room.acquire());
+        DefaultRoom again = rooms.acquire("general");
+        assertNotSame(room, again);
+        assertSame(again, rooms.get("general"));
+    }
+
+    @Test
+    void aRoomUsedAgainWhileQueuedIsQueuedAgainWhenReleased() {
+        RoomRegistry rooms = new RoomRegistry(DefaultRoom::new);
+        DefaultRoom room = rooms.acquire("general");
+        rooms.release(room);
+        rooms.acquire("general");
+
+        assertEquals(0, rooms.evictIdleRooms(System.currentTimeMillis() + LATER));
+        rooms.release(room);
+        assertEquals(1, rooms.evictIdleRooms(System.currentTimeMillis() + LATER));
+    }
+
+    @Test
+    void anEvictedRoomWithALogKeepsItsNameAndHistory() throws Exception {
+        RoomLogStore store = new RoomLogStore(directory.toString());
+        RoomRegistry rooms = new RoomRegistry(roomName -> new DefaultRoom(roomName, store));
+        DefaultRoom room = rooms.acquire("general");
+        room.addMessage("hello");
+        rooms.release(room);
+
+        assertEquals(1, rooms.evictIdleRooms(System.currentTimeMillis() + LATER));
+        assertNull(rooms.get("general"));
+        assertEquals(List.of("general"), rooms.list("", 0, 10));
+
+        // Reopening waits for the evicted room's log to be closed
+        DefaultRoom again = rooms.acquire("general");
+        assertEquals(List.of("hello"), again.getMessages());
+        store.close();
+    }
+
+    @Test
+    void listsRoomsThatAreOnlyOnDisk() {
+        RoomRegistry rooms = new RoomRegistry(DefaultRoom::new);
+        rooms.addNames(List.of("beta", "alpha", "gamma", "alpine"));
+        rooms.acquire("delta");
+
+        assertEquals(List.of("alpha", "alpine", "beta", "delta", "gamma"), rooms.list("", 0, 10));
+        assertEquals(List.of("alpine"), rooms.list("al", 1, 10));
+        assertEquals(List.of("beta", "delta"), rooms.list("", 2, 2));
+        assertEquals(1, rooms.size());
+    }
+
+    @Test
+    void neverEvictsARoomThatIsHeld() throws Exception {
+        RoomRegistry rooms = new RoomRegistry(DefaultRoom::new);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread evictor = Thread.ofPlatform().start(() -> {
+            while (running.get()) {
+                rooms.evictIdleRooms(System.currentTimeMillis() + LATER);
+            }
+        });
+        List<Thread> users = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            users.add(Thread.ofPlatform().start(() -> {
+                try {
+                    for (int i = 0; i < 50_000; i++) {
+                        String roomName = "room" + ThreadLocalRandom.current().nextInt(8);
+                        DefaultRoom room = rooms.acquire(roomName);
+                        assertSame(room, rooms.get(roomName), roomName);
+                        rooms.release(room);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (Thread user : users) {
+            user.join();
+        }
+        running.set(false);
+        evictor.join();
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        rooms.evictIdleRooms(System.currentTimeMillis() + LATER);
+        assertEquals(0, rooms.size());
+        assertTrue(rooms.getNames().isEmpty());
+    }
+}
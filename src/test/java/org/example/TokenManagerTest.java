@@ -0,0 +1,133 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class TokenManagerTest {
+    private static final long VALIDITY_MILLIS = 10_000;
+
+    private TokenManager tokens;
+
+    @AfterEach
+    void tearDown() {
+        tokens.shutdown();
+    }
+
+    @Test
+    void tokensExpireWhenTheirSlotIsSwept() {
+        long start = System.currentTimeMillis();
+        tokens = manualClock(VALIDITY_MILLIS, null);
+        String token = tokens.generateToken("alice");
+
+        tokens.tick(start + VALIDITY_MILLIS - 1000);
+        assertEquals("alice", tokens.getUsernameFromToken(token));
+        assertEquals(1, tokens.size());
+
+        tokens.tick(start + VALIDITY_MILLIS + 2000);
+        assertNull(tokens.getUsernameFromToken(token));
+        assertEquals(0, tokens.size());
+    }
+
+    @Test
+    void sweepsEverySlotBetweenTicks() {
+        long start = System.currentTimeMillis();
+        tokens = manualClock(VALIDITY_MILLIS, null);
+        for (int i = 0; i < 100; i++) {
+            tokens.generateToken("user" + i);
+        }
+
+        // One tick long after the last one still reaches every slot in between
+        tokens.tick(start + VALIDITY_MILLIS + 2000);
+        assertEquals(0, tokens.size());
+    }
+
+    @Test
+    void keepsTokensThatExpireOnALaterTurnOfTheWheel() {
+        // Longer than the 2048 one-second slots, so the token's slot comes round once early
+        long validity = 3000_000;
+        long start = System.currentTimeMillis();
+        tokens = manualClock(validity, null);
+        String token = tokens.generateToken("alice");
+
+        tokens.tick(start + 1000_000);
+        assertEquals("alice", tokens.getUsernameFromToken(token));
+        assertEquals(1, tokens.size());
+
+        tokens.tick(start + validity + 2000);
+        assertNull(tokens.getUsernameFromToken(token));
+        assertEquals(0, tokens.size());
+    }
+
+    @Test
+    void recoversFromAPauseLongerThanTheWheel() {
+        long start = System.currentTimeMillis();
+        tokens = manualClock(VALIDITY_MILLIS, null);
+        tokens.generateToken("alice");
+
+        tokens.tick(start + 5000_000);
+        assertEquals(0, tokens.size());
+    }
+
+    @Test
+    void invalidatedTokensAreGoneAtOnce() {
+        long start = System.currentTimeMillis();
+        tokens = manualClock(VALIDITY_MILLIS, null);
+        String token = tokens.generateToken("alice");
+        String other = tokens.generateToken("bob");
+
+        tokens.invalidateToken(token);
+        assertNull(tokens.getUsernameFromToken(token));
+        assertEquals(1, tokens.size());
+
+        // The stale wheel entry is skipped when its slot comes round
+        tokens.tick(start + VALIDITY_MILLIS + 2000);
+        assertNull(tokens.getUsernameFromToken(other));
+        assertEquals(0, tokens.size());
+    }
+
+    @Test
+    void remembersRevokedSignedTokensOnlyUntilTheyExpire() {
+        long start = System.currentTimeMillis();
+        tokens = manualClock(VALIDITY_MILLIS, new TokenSigner(new byte[32]));
+        String token = tokens.generateToken("alice");
+        assertEquals("alice", tokens.getUsernameFromToken(token));
+        assertEquals(0, tokens.size());
+
+        tokens.invalidateToken(token);
+        assertNull(tokens.getUsernameFromToken(token));
+        assertEquals(1, tokens.size());
+
+        tokens.tick(start + VALIDITY_MILLIS - 1000);
+        assertEquals(1, tokens.size());
+        tokens.tick(start + VALIDITY_MILLIS + 2000);
+        assertEquals(0, tokens.size());
+        // Expired on its own by now
+        assertNull(tokens.getUsernameFromToken(token));
+    }
+
+    @Test
+    void aRevokedSignedTokenCannotBeReplayedWithADifferentEncodingOfItsMac() {
+        tokens = manualClock(VALIDITY_MILLIS, new TokenSigner(new byte[32]));
+        String token = tokens.generateToken("alice");
+        tokens.invalidateToken(token);
+
+        // The last of the 43 characters carries two unused bits; flipping one keeps the decoded MAC
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        char last = token.charAt(token.length() - 1);
+        String twin = token.substring(0, token.length() - 1) + alphabet.charAt(alphabet.indexOf(last) ^ 1);
+        assertNull(tokens.getUsernameFromToken(twin));
+        assertNull(tokens.getUsernameFromToken(token + "="));
+    }
+
+    /**
+     * A token manager whose clock only moves when the test calls {@link TokenManager#tick}.
+     */
+    private static TokenManager manualClock(long validityMillis, TokenSigner signer) {
+        TokenManager manager = new TokenManager(validityMillis, signer);
+        manager.shutdown();
+        return manager;
+    }
+}